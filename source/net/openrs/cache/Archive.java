@@ -21,14 +21,17 @@
  */
 package net.openrs.cache;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * An {@link Archive} is a file within the cache that can have multiple member
  * files inside it.
+ * <p />
+ * Archives read with {@link #decodeLazy(ByteBuffer, int)} keep a view of the
+ * decompressed container instead of copying every member out of it. Members
+ * of single chunk archives are returned as read-only slices of the container,
+ * and members of multi-chunk archives are assembled on first access.
  * 
  * @author Graham
  * @author `Discardedx2
@@ -102,10 +105,82 @@ public class Archive {
 	}
 
 	/**
-	 * The array of entries in this archive.
+	 * Decodes the specified {@link ByteBuffer} into a lazy {@link Archive}.
+	 * Only the chunk table is read up front; no member is copied until it is
+	 * needed, and members of single chunk archives are never copied.
+	 * 
+	 * @param buffer
+	 *            The buffer, which must not be modified while the archive is
+	 *            in use.
+	 * @param size
+	 *            The size of the archive.
+	 * @return The decoded {@link Archive}.
+	 */
+	public static Archive decodeLazy(ByteBuffer buffer, int size) {
+		ByteBuffer data = buffer.asReadOnlyBuffer();
+
+		/* read the number of chunks at the end of the archive */
+		int chunks = data.get(data.limit() - 1) & 0xFF;
+
+		/* work out where each chunk of each entry starts */
+		int[] offsets = new int[chunks * size];
+		int[] lengths = new int[chunks * size];
+		int[] sizes = new int[size];
+		int pos = 0, ptr = data.limit() - 1 - chunks * size * 4;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int chunkSize = 0;
+			for (int id = 0; id < size; id++, ptr += 4) {
+				chunkSize += data.getInt(ptr);
+
+				offsets[chunk * size + id] = pos;
+				lengths[chunk * size + id] = chunkSize;
+				sizes[id] += chunkSize;
+				pos += chunkSize;
+			}
+		}
+
+		return new Archive(data, chunks, offsets, lengths, sizes);
+	}
+
+	/**
+	 * The array of entries in this archive. In a lazy archive, an entry is
+	 * {@code null} until it is replaced.
 	 */
 	private final ByteBuffer[] entries;
 
+	/**
+	 * The entries of a lazy multi-chunk archive which have been assembled so
+	 * far, or {@code null} if the archive is not one.
+	 */
+	private final ByteBuffer[] assembled;
+
+	/**
+	 * The decompressed container of a lazy archive, or {@code null}.
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * The number of chunks in a lazy archive.
+	 */
+	private final int chunks;
+
+	/**
+	 * The offset of each chunk of each entry in a lazy archive, indexed by
+	 * {@code chunk * size + id}.
+	 */
+	private final int[] offsets;
+
+	/**
+	 * The length of each chunk of each entry in a lazy archive, indexed like
+	 * {@link #offsets}.
+	 */
+	private final int[] lengths;
+
+	/**
+	 * The total size of each entry in a lazy archive.
+	 */
+	private final int[] sizes;
+
 	/**
 	 * Creates a new archive.
 	 * 
@@ -113,74 +188,171 @@ public class Archive {
 	 *            The number of entries in the archive.
 	 */
 	public Archive(int size) {
+		this(null, 0, null, null, null, size);
+	}
+
+	/**
+	 * Creates a new lazy archive.
+	 * 
+	 * @param data
+	 *            The decompressed container.
+	 * @param chunks
+	 *            The number of chunks.
+	 * @param offsets
+	 *            The offset of each chunk of each entry.
+	 * @param lengths
+	 *            The length of each chunk of each entry.
+	 * @param sizes
+	 *            The total size of each entry.
+	 */
+	private Archive(ByteBuffer data, int chunks, int[] offsets, int[] lengths, int[] sizes) {
+		this(data, chunks, offsets, lengths, sizes, sizes.length);
+	}
+
+	/**
+	 * Creates a new archive.
+	 * 
+	 * @param data
+	 *            The decompressed container, or {@code null}.
+	 * @param chunks
+	 *            The number of chunks.
+	 * @param offsets
+	 *            The offset of each chunk of each entry.
+	 * @param lengths
+	 *            The length of each chunk of each entry.
+	 * @param sizes
+	 *            The total size of each entry.
+	 * @param size
+	 *            The number of entries in the archive.
+	 */
+	private Archive(ByteBuffer data, int chunks, int[] offsets, int[] lengths, int[] sizes, int size) {
 		this.entries = new ByteBuffer[size];
+		this.assembled = data != null && chunks != 1 ? new ByteBuffer[size] : null;
+		this.data = data;
+		this.chunks = chunks;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * Encodes this {@link Archive} into a {@link ByteBuffer}, with every entry
+	 * in a single chunk.
+	 * 
+	 * @return An encoded {@link ByteBuffer}.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public ByteBuffer encode() throws IOException {
+		return encode(1);
 	}
 
 	/**
-	 * Encodes this {@link Archive} into a {@link ByteBuffer}.
-	 * <p />
-	 * Please note that this is a fairly simple implementation that does not
-	 * attempt to use more than one chunk.
+	 * Encodes this {@link Archive} into a {@link ByteBuffer}, splitting every
+	 * entry evenly across the specified number of chunks. The output is sized
+	 * up front from the lengths of the entries, which are copied straight
+	 * into it.
 	 * 
+	 * @param chunks
+	 *            The number of chunks, from {@code 1} to {@code 255}.
 	 * @return An encoded {@link ByteBuffer}.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	public ByteBuffer encode() throws IOException { // TODO: an implementation
-													// that can use more than
-													// one chunk
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DataOutputStream os = new DataOutputStream(bout);
-		try {
-			/* add the data for each entry */
+	public ByteBuffer encode(int chunks) throws IOException {
+		if (chunks < 1 || chunks > 255)
+			throw new IllegalArgumentException("Chunk count out of range: " + chunks);
+
+		/* each entry is its bytes up to the limit, whatever its position */
+		ByteBuffer[] views = new ByteBuffer[entries.length];
+		int[] entrySizes = new int[entries.length];
+		long length = 1 + (long) chunks * entries.length * 4;
+		for (int id = 0; id < entries.length; id++) {
+			views[id] = getEntry(id).duplicate();
+			entrySizes[id] = views[id].limit();
+			length += entrySizes[id];
+		}
+
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Archive too large.");
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+
+		/* add the data for each chunk of each entry */
+		for (int chunk = 0; chunk < chunks; chunk++) {
 			for (int id = 0; id < entries.length; id++) {
-				/* copy to temp buffer */
-				byte[] temp = new byte[entries[id].limit()];
-				entries[id].position(0);
-				try {
-					entries[id].get(temp);
-				} finally {
-					entries[id].position(0);
-				}
-
-				/* copy to output stream */
-				os.write(temp);
+				ByteBuffer view = views[id];
+				view.limit(getChunkOffset(entrySizes[id], chunk + 1, chunks));
+				view.position(getChunkOffset(entrySizes[id], chunk, chunks));
+				buf.put(view);
 			}
+		}
 
-			/* write the chunk lengths */
+		/* write the delta-encoded chunk lengths */
+		for (int chunk = 0; chunk < chunks; chunk++) {
 			int prev = 0;
 			for (int id = 0; id < entries.length; id++) {
-				/*
-				 * since each file is stored in the only chunk, just write the
-				 * delta-encoded file size
-				 */
-				int chunkSize = entries[id].limit();
-				os.writeInt(chunkSize - prev);
+				int chunkSize = getChunkOffset(entrySizes[id], chunk + 1, chunks)
+						- getChunkOffset(entrySizes[id], chunk, chunks);
+				buf.putInt(chunkSize - prev);
 				prev = chunkSize;
 			}
+		}
 
-			/*
-			 * we only used one chunk due to a limitation of the implementation
-			 */
-			bout.write(1);
+		buf.put((byte) chunks);
+		return (ByteBuffer) buf.flip();
+	}
 
-			/* wrap the bytes from the stream in a buffer */
-			byte[] bytes = bout.toByteArray();
-			return ByteBuffer.wrap(bytes);
-		} finally {
-			os.close();
-		}
+	/**
+	 * Gets the offset within an entry at which a chunk starts.
+	 * 
+	 * @param size
+	 *            The size of the entry.
+	 * @param chunk
+	 *            The chunk, or the number of chunks for the end of the entry.
+	 * @param chunks
+	 *            The number of chunks.
+	 * @return The offset.
+	 */
+	private static int getChunkOffset(int size, int chunk, int chunks) {
+		return (int) ((long) size * chunk / chunks);
 	}
 
 	/**
-	 * Gets the entry with the specified id.
+	 * Gets the entry with the specified id. Entries of a lazy archive which
+	 * have not been replaced are returned as a new read-only view each time.
 	 * 
 	 * @param id
 	 *            The id.
 	 * @return The entry.
 	 */
 	public ByteBuffer getEntry(int id) {
-		return entries[id];
+		ByteBuffer entry = entries[id];
+		if (entry != null || data == null)
+			return entry;
+
+		if (chunks == 1) {
+			/* the entry is contiguous, so just slice it out of the container */
+			ByteBuffer slice = data.duplicate();
+			slice.position(offsets[id]).limit(offsets[id] + sizes[id]);
+			return slice.slice();
+		}
+
+		/* gather the chunks of the entry the first time it is used */
+		entry = assembled[id];
+		if (entry == null) {
+			byte[] bytes = new byte[sizes[id]];
+			ByteBuffer src = data.duplicate();
+			for (int chunk = 0, pos = 0, size = entries.length; chunk < chunks; chunk++) {
+				int length = lengths[chunk * size + id];
+				src.position(offsets[chunk * size + id]);
+				src.get(bytes, pos, length);
+				pos += length;
+			}
+
+			entry = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+			assembled[id] = entry;
+		}
+		return entry.duplicate();
 	}
 
 	/**
@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.openrs.cache.util.XTEAManager;
+
+/**
+ * A {@link BatchReader} reads files from a {@link FileStore} asynchronously,
+ * in batches. Each batch is read by a single task on the executor in order of
+ * the first sector of each file, which turns a burst of random requests, such
+ * as a client asking an update server for many archives at once, into a
+ * mostly sequential sweep over the data file.
+ * <p />
+ * A file which is still being read for an earlier request is not read again:
+ * the later request shares the result of the earlier one. The buffers handed
+ * out are therefore read-only views, and each caller gets its own view.
+ */
+public final class BatchReader {
+
+	/**
+	 * A request for a single file which has not been read yet.
+	 */
+	private static final class Request {
+
+		/**
+		 * The type of the file.
+		 */
+		private final int type;
+
+		/**
+		 * The id of the file.
+		 */
+		private final int id;
+
+		/**
+		 * The future completed with the contents of the file.
+		 */
+		private final CompletableFuture<ByteBuffer> future;
+
+		/**
+		 * The first sector of the file, used to order the batch.
+		 */
+		private int sector;
+
+		/**
+		 * Creates a new request.
+		 * 
+		 * @param type
+		 *            The type of the file.
+		 * @param id
+		 *            The id of the file.
+		 * @param future
+		 *            The future completed with the contents of the file.
+		 */
+		public Request(int type, int id, CompletableFuture<ByteBuffer> future) {
+			this.type = type;
+			this.id = id;
+			this.future = future;
+		}
+
+	}
+
+	/**
+	 * The file store being read.
+	 */
+	private final FileStore store;
+
+	/**
+	 * The executor which reads batches and decodes containers.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The reads in flight, keyed by type and id.
+	 */
+	private final ConcurrentMap<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new batch reader. As reads block on I/O, the executor should
+	 * not be the common fork-join pool.
+	 * 
+	 * @param store
+	 *            The file store.
+	 * @param executor
+	 *            The executor which reads batches and decodes containers.
+	 */
+	public BatchReader(FileStore store, Executor executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	/**
+	 * Reads a file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return A future completed with a read-only view of the file.
+	 */
+	public CompletableFuture<ByteBuffer> read(int type, int id) {
+		return read(new int[] { type }, new int[] { id }).get(0);
+	}
+
+	/**
+	 * Reads a batch of files. The files are identified by the elements at the
+	 * same position in each array.
+	 * 
+	 * @param types
+	 *            The types of the files.
+	 * @param ids
+	 *            The ids of the files.
+	 * @return The futures completed with a read-only view of each file, in
+	 *         the order they were requested.
+	 */
+	public List<CompletableFuture<ByteBuffer>> read(int[] types, int[] ids) {
+		if (types.length != ids.length)
+			throw new IllegalArgumentException();
+
+		List<CompletableFuture<ByteBuffer>> results = new ArrayList<>(types.length);
+		List<Request> batch = new ArrayList<>();
+
+		for (int i = 0; i < types.length; i++) {
+			CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+			CompletableFuture<ByteBuffer> existing = pending.putIfAbsent(key(types[i], ids[i]), future);
+			if (existing == null) {
+				batch.add(new Request(types[i], ids[i], future));
+				existing = future;
+			}
+			results.add(existing.thenApply(ByteBuffer::asReadOnlyBuffer));
+		}
+
+		if (!batch.isEmpty()) {
+			try {
+				executor.execute(() -> run(batch));
+			} catch (RejectedExecutionException ex) {
+				for (Request request : batch)
+					complete(request, null, ex);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Reads and decodes a container.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return A future completed with the container.
+	 */
+	public CompletableFuture<Container> readContainer(int type, int id) {
+		return readContainer(type, id, XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Reads and decodes an encrypted container.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param keys
+	 *            The decryption keys.
+	 * @return A future completed with the container.
+	 */
+	public CompletableFuture<Container> readContainer(int type, int id, int[] keys) {
+		return decode(read(type, id), keys);
+	}
+
+	/**
+	 * Reads and decodes a batch of containers. The files are identified by
+	 * the elements at the same position in each array.
+	 * 
+	 * @param types
+	 *            The types of the files.
+	 * @param ids
+	 *            The ids of the files.
+	 * @return The futures completed with each container, in the order they
+	 *         were requested.
+	 */
+	public List<CompletableFuture<Container>> readContainers(int[] types, int[] ids) {
+		List<CompletableFuture<ByteBuffer>> files = read(types, ids);
+
+		List<CompletableFuture<Container>> containers = new ArrayList<>(files.size());
+		for (CompletableFuture<ByteBuffer> file : files)
+			containers.add(decode(file, XTEAManager.NULL_KEYS));
+
+		return containers;
+	}
+
+	/**
+	 * Decodes a container on the executor once it has been read.
+	 * 
+	 * @param file
+	 *            The future completed with the file.
+	 * @param keys
+	 *            The decryption keys.
+	 * @return A future completed with the container.
+	 */
+	private CompletableFuture<Container> decode(CompletableFuture<ByteBuffer> file, int[] keys) {
+		return file.thenApplyAsync(buf -> {
+			/* decryption happens in place, so it needs a private copy */
+			if (keys[0] != 0 || keys[1] != 0 || keys[2] != 0 || keys[3] != 0) {
+				ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+				copy.put(buf);
+				buf = (ByteBuffer) copy.flip();
+			}
+
+			try {
+				return Container.decode(buf, keys);
+			} catch (IOException ex) {
+				throw new CompletionException(ex);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Reads a batch of files in order of their first sector.
+	 * 
+	 * @param batch
+	 *            The batch.
+	 */
+	private void run(List<Request> batch) {
+		for (Request request : batch) {
+			try {
+				request.sector = store.getSector(request.type, request.id);
+			} catch (IOException | RuntimeException ex) {
+				complete(request, null, ex);
+			}
+		}
+
+		batch.sort(Comparator.comparingInt(request -> request.sector));
+
+		for (Request request : batch) {
+			if (request.future.isDone())
+				continue;
+
+			try {
+				complete(request, store.read(request.type, request.id), null);
+			} catch (IOException | RuntimeException ex) {
+				complete(request, null, ex);
+			}
+		}
+	}
+
+	/**
+	 * Completes a request and stops sharing it with later requests.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @param buf
+	 *            The contents of the file, if it was read.
+	 * @param cause
+	 *            The reason the read failed, if it did.
+	 */
+	private void complete(Request request, ByteBuffer buf, Throwable cause) {
+		pending.remove(key(request.type, request.id), request.future);
+
+		if (cause != null)
+			request.future.completeExceptionally(cause);
+		else
+			request.future.complete(buf);
+	}
+
+	/**
+	 * Gets the key of a file in the map of reads in flight.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The key.
+	 */
+	private static Long key(int type, int id) {
+		return (long) type << 32 | id & 0xFFFFFFFFL;
+	}
+
+}
@@ -24,9 +24,17 @@ package net.openrs.cache;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.CRC32;
 
 import net.openrs.cache.ReferenceTable.Entry;
@@ -34,20 +42,135 @@ import net.openrs.cache.type.CacheIndex;
 import net.openrs.cache.type.ConfigArchive;
 import net.openrs.cache.util.XTEAManager;
 import net.openrs.util.ByteBufferUtils;
-import net.openrs.util.crypto.Djb2;
 import net.openrs.util.crypto.Whirlpool;
 
 /**
  * The {@link Cache} class provides a unified, high-level API for modifying the
  * cache of a Jagex game.
+ * <p />
+ * Reads may be issued from any number of threads at once, see
+ * {@link FileStore} for the details. Writes are serialized against each other,
+ * as each one rewrites the {@link ReferenceTable} of its type. A file and its
+ * updated table are handed to the store as one {@link WriteBatch}, so they
+ * land atomically if the store was opened with
+ * {@link FileStore.Option#JOURNALED}.
+ * <p />
+ * A cache may keep recently read containers decoded in a
+ * {@link ContainerCache}. Files written through this class are dropped from
+ * it automatically, but writes made directly to the {@link FileStore} are not
+ * seen.
  * 
  * @author Graham
  * @author `Discardedx2
  */
 public final class Cache implements Closeable {
 
-	private static final Map<String, Integer> identifiers = new HashMap<>();
-	
+	/**
+	 * The files and reference tables touched by a batch of writes.
+	 */
+	private static final class Batch {
+
+		/**
+		 * The encoded files, which the encoded tables are added to on commit.
+		 */
+		private final WriteBatch files = new WriteBatch();
+
+		/**
+		 * The decoded reference tables, keyed by type.
+		 */
+		private final Map<Integer, ReferenceTable> tables = new TreeMap<>();
+
+		/**
+		 * The compression type of each reference table's container, keyed by
+		 * type.
+		 */
+		private final Map<Integer, Integer> compression = new HashMap<>();
+
+	}
+
+	/**
+	 * A read from the store which tells a {@link ForkJoinPool} that the
+	 * thread making it may block on I/O, so the pool can start another thread
+	 * rather than sit idle while the disk catches up.
+	 */
+	private final class BlockingRead implements ForkJoinPool.ManagedBlocker {
+
+		/**
+		 * The type of the file.
+		 */
+		private final int type;
+
+		/**
+		 * The id of the file.
+		 */
+		private final int id;
+
+		/**
+		 * The contents of the file, once read.
+		 */
+		private ByteBuffer buffer;
+
+		/**
+		 * The reason the file could not be read, if any.
+		 */
+		private IOException failure;
+
+		/**
+		 * A flag indicating if the read has been made.
+		 */
+		private boolean done;
+
+		/**
+		 * Creates a new blocking read.
+		 * 
+		 * @param type
+		 *            The type of the file.
+		 * @param id
+		 *            The id of the file.
+		 */
+		private BlockingRead(int type, int id) {
+			this.type = type;
+			this.id = id;
+		}
+
+		@Override
+		public boolean block() {
+			try {
+				buffer = store.read(type, id);
+			} catch (IOException ex) {
+				failure = ex;
+			}
+			done = true;
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return done;
+		}
+
+		/**
+		 * Makes the read, blocking through the current pool if there is one.
+		 * 
+		 * @return The contents of the file.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		private ByteBuffer read() throws IOException {
+			try {
+				ForkJoinPool.managedBlock(this);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+
+			if (failure != null)
+				throw failure;
+			return buffer;
+		}
+
+	}
+
 	/**
 	 * The file store that backs this cache.
 	 */
@@ -58,6 +181,23 @@ public final class Cache implements Closeable {
 	 */
 	private ReferenceTable[] references;
 
+	/**
+	 * The checksum table entries computed so far, indexed by type, or
+	 * {@code null} where a type's reference table has been written since.
+	 */
+	private final ChecksumTable.Entry[] checksums;
+
+	/**
+	 * The cache of decoded containers, or {@code null} if reads always decode.
+	 */
+	private final ContainerCache containers;
+
+	/**
+	 * The batch writes are collected in, or {@code null} if each write goes
+	 * straight to the store.
+	 */
+	private Batch batch;
+
 	/**
 	 * Creates a new {@link Cache} backed by the specified {@link FileStore}.
 	 * 
@@ -66,9 +206,26 @@ public final class Cache implements Closeable {
 	 * @throws IOException
 	 */
 	public Cache(FileStore store) throws IOException {
+		this(store, 0);
+	}
+
+	/**
+	 * Creates a new {@link Cache} backed by the specified {@link FileStore},
+	 * which keeps recently read containers in a {@link ContainerCache}.
+	 * 
+	 * @param store
+	 *            The {@link FileStore} that backs this {@link Cache}.
+	 * @param containerCacheSize
+	 *            The maximum size of the decoded data to keep, in bytes, or
+	 *            {@code 0} to always decode.
+	 * @throws IOException
+	 */
+	public Cache(FileStore store, long containerCacheSize) throws IOException {
 		this.store = store;
+		this.containers = containerCacheSize > 0 ? new ContainerCache(containerCacheSize) : null;
 
 		this.references = new ReferenceTable[store.getTypeCount()];
+		this.checksums = new ChecksumTable.Entry[store.getTypeCount()];
 		
 		for (int type = 0; type < store.getTypeCount(); type++) {
 			ByteBuffer buf = store.read(255, type);
@@ -93,51 +250,116 @@ public final class Cache implements Closeable {
 	
 	/**
 	 * Computes the {@link ChecksumTable} for this cache. The checksum table
-	 * forms part of the so-called "update keys".
+	 * forms part of the so-called "update keys". The reference tables are
+	 * hashed in parallel on the common {@link ForkJoinPool}.
 	 * 
 	 * @return The {@link ChecksumTable}.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
 	public ChecksumTable createChecksumTable() throws IOException {
+		return createChecksumTable(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Computes the {@link ChecksumTable} for this cache, hashing the reference
+	 * tables in parallel. The entry of each type is kept and reused until its
+	 * reference table is written through this cache; writes made straight to
+	 * the {@link FileStore} are not noticed.
+	 * <p />
+	 * The tasks read the reference tables from the store through
+	 * {@link ForkJoinPool#managedBlock}, so a pool shared with other work is
+	 * not starved while they wait on the disk. If one of them fails, the
+	 * others are cancelled before the failure is thrown.
+	 * 
+	 * @param pool
+	 *            The pool to hash the reference tables on.
+	 * @return The {@link ChecksumTable}.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public synchronized ChecksumTable createChecksumTable(ForkJoinPool pool) throws IOException {
 		/* create the checksum table */
 		int size = store.getTypeCount();
 		ChecksumTable table = new ChecksumTable(size);
 
-		/*
-		 * loop through all the reference tables and get their CRC and versions
-		 */
+		/* hash every reference table we have not hashed yet at the same time */
+		List<ForkJoinTask<ChecksumTable.Entry>> tasks = new ArrayList<>(size);
 		for (int i = 0; i < size; i++) {
-			int crc = 0;
-			int version = 0;
-			int files = 0;
-			int archiveSize = 0;
-			byte[] whirlpool = new byte[64];
-
-			if (store.hasData()) {
-				/*
-				 * if there is actually a reference table, calculate the CRC,
-				 * version and whirlpool hash
-				 */
-				ByteBuffer buf = store.read(255, i);
-				if (buf != null && buf.limit() > 0) {
-					ReferenceTable ref = references[i];
-					crc = ByteBufferUtils.getCrcChecksum(buf);
-					version = ref.getVersion();
-					files = ref.capacity();
-					archiveSize = ref.getArchiveSize();
-					buf.position(0);
-					whirlpool = ByteBufferUtils.getWhirlpoolDigest(buf);
+			int type = i;
+			boolean cached = type < checksums.length && checksums[type] != null;
+			tasks.add(cached ? null : pool.submit(() -> {
+				try {
+					return createChecksumEntry(type);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}));
+		}
+
+		try {
+			for (int i = 0; i < size; i++) {
+				ForkJoinTask<ChecksumTable.Entry> task = tasks.get(i);
+				if (task != null) {
+					ChecksumTable.Entry entry = task.join();
+					if (i < checksums.length)
+						checksums[i] = entry;
+					table.setEntry(i, entry);
+				} else {
+					table.setEntry(i, checksums[i]);
 				}
 			}
+		} catch (RuntimeException ex) {
+			/* don't leave the rest of the reads queued on the pool */
+			for (ForkJoinTask<ChecksumTable.Entry> task : tasks) {
+				if (task != null)
+					task.cancel(false);
+			}
 
-			table.setEntry(i, new ChecksumTable.Entry(crc, version, files, archiveSize, whirlpool));
+			if (ex instanceof UncheckedIOException)
+				throw ((UncheckedIOException) ex).getCause();
+			throw ex;
 		}
 
 		/* return the table */
 		return table;
 	}
 
+	/**
+	 * Computes the checksum table entry of a single type.
+	 * 
+	 * @param type
+	 *            The type.
+	 * @return The entry.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private ChecksumTable.Entry createChecksumEntry(int type) throws IOException {
+		int crc = 0;
+		int version = 0;
+		int files = 0;
+		int archiveSize = 0;
+		byte[] whirlpool = new byte[64];
+
+		if (store.hasData()) {
+			/*
+			 * if there is actually a reference table, calculate the CRC,
+			 * version and whirlpool hash
+			 */
+			ByteBuffer buf = new BlockingRead(255, type).read();
+			ReferenceTable ref = type < references.length ? references[type] : null;
+			if (buf != null && buf.limit() > 0 && ref != null) {
+				crc = ByteBufferUtils.getCrcChecksum(buf);
+				version = ref.getVersion();
+				files = ref.capacity();
+				archiveSize = ref.getArchiveSize();
+				whirlpool = ByteBufferUtils.getWhirlpoolDigest(buf);
+			}
+		}
+
+		return new ChecksumTable.Entry(crc, version, files, archiveSize, whirlpool);
+	}
+
 	/**
 	 * Gets the number of files of the specified type.
 	 * 
@@ -151,6 +373,16 @@ public final class Cache implements Closeable {
 		return store.getFileCount(type);
 	}
 
+	/**
+	 * Gets the cache of decoded containers.
+	 * 
+	 * @return The container cache, or {@code null} if this cache was created
+	 *         without one.
+	 */
+	public ContainerCache getContainerCache() {
+		return containers;
+	}
+
 	/**
 	 * Gets the {@link FileStore} that backs this {@link Cache}.
 	 * 
@@ -213,12 +445,7 @@ public final class Cache implements Closeable {
 	 *             if an I/O error occurred.
 	 */
 	public Container read(int type, int file) throws IOException {
-		/* we don't want people reading/manipulating these manually */
-		if (type == 255)
-			throw new IOException("Reference tables can only be read with the low level FileStore API!");
-
-		/* delegate the call to the file store then decode the container */
-		return Container.decode(store.read(type, file));
+		return read(type, file, XTEAManager.NULL_KEYS);
 	}
 
 	/**
@@ -239,8 +466,18 @@ public final class Cache implements Closeable {
 		if (type == 255)
 			throw new IOException("Reference tables can only be read with the low level FileStore API!");
 
-		/* delegate the call to the file store then decode the container */
-		return Container.decode(store.read(type, file), keys);
+		if (containers == null) {
+			/* delegate the call to the file store then decode the container */
+			return Container.decode(store.read(type, file), keys);
+		}
+
+		Container container = containers.get(type, file, keys);
+		if (container == null) {
+			long generation = containers.getGeneration();
+			container = Container.decode(store.read(type, file), keys);
+			containers.put(type, file, keys, container, generation);
+		}
+		return container;
 	}
 
 	/**
@@ -259,16 +496,15 @@ public final class Cache implements Closeable {
 	public ByteBuffer read(int type, int file, int member) throws IOException {
 		/* grab the container and the reference table */
 		Container container = read(type, file);
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+		ReferenceTable table = references[type];
 
 		/* check if the file/member are valid */
-		ReferenceTable.Entry entry = table.getEntry(file);
+		ReferenceTable.Entry entry = table == null ? null : table.getEntry(file);
 		if (entry == null || member < 0 || member >= entry.capacity())
 			throw new FileNotFoundException();
 
-		/* extract the entry from the archive */
-		Archive archive = Archive.decode(container.getData(), entry.capacity());
+		/* slice the entry out of the archive without copying the others */
+		Archive archive = Archive.decodeLazy(container.getData(), entry.capacity());
 		return archive.getEntry(member);
 	}
 
@@ -283,13 +519,29 @@ public final class Cache implements Closeable {
 	 * @throws java.io.IOException
 	 */
 	public int getFileId(int type, String name) throws IOException {
-		if (!identifiers.containsKey(name)) {
-			ReferenceTable table = references[type];
-			identifiers.put(name, table.getIdentifiers().getFile(Djb2.hash(name)));
+		ReferenceTable table = references[type];
+		return table == null ? -1 : table.getIdentifiers().getFile(name);
+	}
+
+	/**
+	 * Gets the ids of the files named {@code prefix + x + "_" + y} for every
+	 * region in one pass, such as the {@code "m"} and {@code "l"} map files.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param prefix
+	 *            The prefix of the names.
+	 * @return The file ids, indexed by region id ({@code x << 8 | y}), with
+	 *         {@code -1} for regions without a file.
+	 */
+	public int[] getRegionFileIds(int type, String prefix) {
+		ReferenceTable table = references[type];
+		if (table == null) {
+			int[] ids = new int[65536];
+			Arrays.fill(ids, -1);
+			return ids;
 		}
-		
-		Integer i = identifiers.get(name);
-		return i == null ? -1 : i.intValue();
+		return table.getIdentifiers().getRegionFiles(prefix);
 	}
 
 	/**
@@ -324,34 +576,54 @@ public final class Cache implements Closeable {
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	public void write(int type, int file, Container container, int[] keys) throws IOException {
+	public synchronized void write(int type, int file, Container container, int[] keys) throws IOException {
 		/* we don't want people reading/manipulating these manually */
 		if (type == 255)
 			throw new IOException("Reference tables can only be modified with the low level FileStore API!");
 
+		Batch batch = this.batch != null ? this.batch : new Batch();
+		write(batch, getReferenceTable(batch, type), type, file, container, keys);
+
+		/* outside of a batch, the file and its table are saved straight away */
+		if (batch != this.batch)
+			commit(batch);
+	}
+
+	/**
+	 * Encodes a file into a batch and updates its entry in the
+	 * {@link ReferenceTable}. The table itself is not written.
+	 * 
+	 * @param batch
+	 *            The batch to add the file to.
+	 * @param table
+	 *            The reference table of the file's type.
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @param container
+	 *            The {@link Container} to write.
+	 * @param keys
+	 *            The encryption keys.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void write(Batch batch, ReferenceTable table, int type, int file, Container container, int[] keys)
+			throws IOException {
 		/* increment the container's version */
 		container.setVersion(container.getVersion()/* + 1 */);
 
-		/* decode the reference table for this index */
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
-
 		/* grab the bytes we need for the checksum */
 		ByteBuffer buffer = container.encode(keys);
 		
 		/* last two bytes are the version and shouldn't be included */
-		byte[] bytes = new byte[buffer.limit() - 2];
-		buffer.mark();
-		try {
-			buffer.position(0);
-			buffer.get(bytes, 0, bytes.length);
-		} finally {
-			buffer.reset();
-		}
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.position(0);
+		bytes.limit(buffer.limit() - 2);
 
 		/* calculate the new CRC checksum */
 		CRC32 crc = new CRC32();
-		crc.update(bytes, 0, bytes.length);
+		crc.update(bytes.duplicate());
 
 		/* update the version and checksum for this file */
 		ReferenceTable.Entry entry = table.getEntry(file);
@@ -365,19 +637,12 @@ public final class Cache implements Closeable {
 
 		/* calculate and update the whirlpool digest if we need to */
 		if ((table.getFlags() & ReferenceTable.FLAG_WHIRLPOOL) != 0) {
-			byte[] whirlpool = Whirlpool.whirlpool(bytes, 0, bytes.length);
+			byte[] whirlpool = Whirlpool.whirlpool(bytes);
 			entry.setWhirlpool(whirlpool);
 		}
 
-		/* update the reference table version */
-		table.setVersion(table.getVersion()/* + 1 */);
-
-		/* save the reference table */
-		tableContainer = new Container(tableContainer.getType(), table.encode());
-		store.write(255, type, tableContainer.encode());
-
-		/* save the file itself */
-		store.write(type, file, buffer);
+		/* queue the file itself */
+		batch.files.add(type, file, buffer);
 	}
 	
 	/**
@@ -414,10 +679,10 @@ public final class Cache implements Closeable {
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	public void write(int type, int file, int member, ByteBuffer data, int[] keys) throws IOException {
+	public synchronized void write(int type, int file, int member, ByteBuffer data, int[] keys) throws IOException {
 		/* grab the reference table */
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+		Batch batch = this.batch != null ? this.batch : new Batch();
+		ReferenceTable table = getReferenceTable(batch, type);
 
 		/* create a new entry if necessary */
 		ReferenceTable.Entry entry = table.getEntry(file);
@@ -439,11 +704,18 @@ public final class Cache implements Closeable {
 		/* extract the current archive into memory so we can modify it */
 		Archive archive;
 		int containerType, containerVersion;
-		if (file < store.getFileCount(type) && oldArchiveSize != -1) {
+		ByteBuffer pending = batch.files.get(type, file);
+		if (pending != null && oldArchiveSize != -1) {
+			/* the archive was already rewritten earlier in this batch */
+			Container container = Container.decode(pending, keys);
+			containerType = container.getType();
+			containerVersion = container.getVersion();
+			archive = Archive.decodeLazy(container.getData(), oldArchiveSize);
+		} else if (file < store.getFileCount(type) && oldArchiveSize != -1) {
 			Container container = read(type, file);
 			containerType = container.getType();
 			containerVersion = container.getVersion();
-			archive = Archive.decode(container.getData(), oldArchiveSize);
+			archive = Archive.decodeLazy(container.getData(), oldArchiveSize);
 		} else {
 			containerType = Container.COMPRESSION_GZIP;
 			containerVersion = 1;
@@ -470,12 +742,114 @@ public final class Cache implements Closeable {
 			}
 		}
 
-		/* write the reference table out again */
-		tableContainer = new Container(tableContainer.getType(), table.encode());
-		store.write(255, type, tableContainer.encode());
-
-		/* and write the archive back to memory */
+		/* encode the archive and update its entry */
 		Container container = new Container(containerType, archive.encode(), containerVersion);
-		write(type, file, container, keys);
+		write(batch, table, type, file, container, keys);
+
+		/* outside of a batch, the archive and its table are saved straight away */
+		if (batch != this.batch)
+			commit(batch);
+	}
+
+	/**
+	 * Starts collecting writes into a batch. Until {@link #commit()} is called,
+	 * writes only update the {@link ReferenceTable}s in memory and queue the
+	 * encoded files, and each table is encoded and written just once when the
+	 * batch is committed. Writes of archive members see the archives written
+	 * earlier in the batch, while reads do not see the batch until it is
+	 * committed.
+	 * <p />
+	 * A cache has at most one open batch, which is shared by every thread
+	 * writing to it.
+	 * 
+	 * @throws IllegalStateException
+	 *             if a batch is already open.
+	 */
+	public synchronized void beginBatch() {
+		if (batch != null)
+			throw new IllegalStateException("A batch is already open.");
+
+		batch = new Batch();
+	}
+
+	/**
+	 * Commits the open batch, writing every file and every touched
+	 * {@link ReferenceTable} to the store as a single {@link WriteBatch}. The
+	 * batch is closed even if the commit fails.
+	 * 
+	 * @throws IllegalStateException
+	 *             if no batch is open.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public synchronized void commit() throws IOException {
+		if (batch == null)
+			throw new IllegalStateException("No batch is open.");
+
+		Batch batch = this.batch;
+		this.batch = null;
+		commit(batch);
+	}
+
+	/**
+	 * Gets the {@link ReferenceTable} of a type for a batch, decoding it from
+	 * the store the first time the batch touches it.
+	 * 
+	 * @param batch
+	 *            The batch.
+	 * @param type
+	 *            The type.
+	 * @return The reference table.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private ReferenceTable getReferenceTable(Batch batch, int type) throws IOException {
+		ReferenceTable table = batch.tables.get(type);
+		if (table == null) {
+			Container tableContainer = Container.decode(store.read(255, type));
+			table = ReferenceTable.decode(tableContainer.getData());
+
+			batch.tables.put(type, table);
+			batch.compression.put(type, tableContainer.getType());
+		}
+		return table;
+	}
+
+	/**
+	 * Encodes every reference table touched by a batch and writes them to the
+	 * store together with the batch's files.
+	 * 
+	 * @param batch
+	 *            The batch.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void commit(Batch batch) throws IOException {
+		for (Map.Entry<Integer, ReferenceTable> entry : batch.tables.entrySet()) {
+			int type = entry.getKey();
+			ReferenceTable table = entry.getValue();
+
+			/* update the reference table version */
+			table.setVersion(table.getVersion()/* + 1 */);
+
+			Container tableContainer = new Container(batch.compression.get(type), table.encode());
+			batch.files.add(255, type, tableContainer.encode());
+		}
+
+		store.write(batch.files);
+
+		if (containers != null) {
+			for (WriteBatch.Entry entry : batch.files.getEntries())
+				containers.invalidate(entry.getType(), entry.getId());
+		}
+
+		/* the tables in memory are now the ones on disk */
+		for (Map.Entry<Integer, ReferenceTable> entry : batch.tables.entrySet()) {
+			int type = entry.getKey();
+			if (type < references.length) {
+				references[type] = entry.getValue();
+				checksums[type] = null;
+			}
+		}
 	}
 }
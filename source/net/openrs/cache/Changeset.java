@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.util.Arrays;
+
+import net.openrs.cache.ReferenceTable.Entry;
+
+/**
+ * A {@link Changeset} lists the differences between two revisions of a
+ * {@link ReferenceTable}: the files which were added, removed or changed, and
+ * for changed archives, the members which were added or removed. It is
+ * computed from the tables alone, without touching any file data.
+ * <p />
+ * A file has changed if its version, CRC or set of members differs.
+ */
+public final class Changeset {
+
+	/**
+	 * An empty array of ids.
+	 */
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Computes the changes from one revision of a table to another.
+	 * 
+	 * @param from
+	 *            The older table.
+	 * @param to
+	 *            The newer table.
+	 * @return The changeset.
+	 */
+	public static Changeset compute(ReferenceTable from, ReferenceTable to) {
+		IdList added = new IdList(), removed = new IdList(), changed = new IdList();
+		int[][] addedMembers = new int[8][], removedMembers = new int[8][];
+
+		int capacity = Math.max(from.capacity(), to.capacity());
+		for (int file = 0; file < capacity; file++) {
+			Entry before = from.getEntry(file), after = to.getEntry(file);
+			if (before == null) {
+				if (after != null)
+					added.add(file);
+				continue;
+			} else if (after == null) {
+				removed.add(file);
+				continue;
+			}
+
+			/* compare the member sets of both revisions */
+			IdList gained = new IdList(), lost = new IdList();
+			int members = Math.max(before.capacity(), after.capacity());
+			for (int member = 0; member < members; member++) {
+				boolean was = before.getEntry(member) != null, is = after.getEntry(member) != null;
+				if (is && !was)
+					gained.add(member);
+				else if (was && !is)
+					lost.add(member);
+			}
+
+			if (before.getVersion() != after.getVersion() || before.getCrc() != after.getCrc() || gained.size > 0
+					|| lost.size > 0) {
+				if (changed.size == addedMembers.length) {
+					addedMembers = Arrays.copyOf(addedMembers, changed.size * 2);
+					removedMembers = Arrays.copyOf(removedMembers, changed.size * 2);
+				}
+
+				addedMembers[changed.size] = gained.toArray();
+				removedMembers[changed.size] = lost.toArray();
+				changed.add(file);
+			}
+		}
+
+		return new Changeset(added.toArray(), removed.toArray(), changed.toArray(),
+				Arrays.copyOf(addedMembers, changed.size), Arrays.copyOf(removedMembers, changed.size));
+	}
+
+	/**
+	 * A growable list of ids, in ascending order.
+	 */
+	private static final class IdList {
+
+		/**
+		 * The ids.
+		 */
+		private int[] ids = EMPTY;
+
+		/**
+		 * The number of ids.
+		 */
+		private int size;
+
+		/**
+		 * Appends an id.
+		 * 
+		 * @param id
+		 *            The id.
+		 */
+		public void add(int id) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, Math.max(8, size * 2));
+			ids[size++] = id;
+		}
+
+		/**
+		 * Copies the ids to an array of the right size.
+		 * 
+		 * @return The ids.
+		 */
+		public int[] toArray() {
+			return size == 0 ? EMPTY : Arrays.copyOf(ids, size);
+		}
+
+	}
+
+	/**
+	 * The files which were added.
+	 */
+	private final int[] added;
+
+	/**
+	 * The files which were removed.
+	 */
+	private final int[] removed;
+
+	/**
+	 * The files which are in both revisions but changed.
+	 */
+	private final int[] changed;
+
+	/**
+	 * The members added to each changed file.
+	 */
+	private final int[][] addedMembers;
+
+	/**
+	 * The members removed from each changed file.
+	 */
+	private final int[][] removedMembers;
+
+	/**
+	 * Creates a new changeset.
+	 * 
+	 * @param added
+	 *            The files which were added.
+	 * @param removed
+	 *            The files which were removed.
+	 * @param changed
+	 *            The files which changed.
+	 * @param addedMembers
+	 *            The members added to each changed file.
+	 * @param removedMembers
+	 *            The members removed from each changed file.
+	 */
+	private Changeset(int[] added, int[] removed, int[] changed, int[][] addedMembers, int[][] removedMembers) {
+		this.added = added;
+		this.removed = removed;
+		this.changed = changed;
+		this.addedMembers = addedMembers;
+		this.removedMembers = removedMembers;
+	}
+
+	/**
+	 * Gets the files which were added.
+	 * 
+	 * @return The file ids, in ascending order.
+	 */
+	public int[] getAdded() {
+		return added.clone();
+	}
+
+	/**
+	 * Gets the files which were removed.
+	 * 
+	 * @return The file ids, in ascending order.
+	 */
+	public int[] getRemoved() {
+		return removed.clone();
+	}
+
+	/**
+	 * Gets the files which are in both revisions but changed.
+	 * 
+	 * @return The file ids, in ascending order.
+	 */
+	public int[] getChanged() {
+		return changed.clone();
+	}
+
+	/**
+	 * Checks if a file was added or changed, and so has to be fetched to bring
+	 * the older revision up to date.
+	 * 
+	 * @param file
+	 *            The file id.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isModified(int file) {
+		return Arrays.binarySearch(added, file) >= 0 || Arrays.binarySearch(changed, file) >= 0;
+	}
+
+	/**
+	 * Gets the members which were added to a changed file.
+	 * 
+	 * @param file
+	 *            The file id.
+	 * @return The member ids, in ascending order, or an empty array if the
+	 *         file did not change.
+	 */
+	public int[] getAddedMembers(int file) {
+		int index = Arrays.binarySearch(changed, file);
+		return index < 0 ? EMPTY : addedMembers[index].clone();
+	}
+
+	/**
+	 * Gets the members which were removed from a changed file.
+	 * 
+	 * @param file
+	 *            The file id.
+	 * @return The member ids, in ascending order, or an empty array if the
+	 *         file did not change.
+	 */
+	public int[] getRemovedMembers(int file) {
+		int index = Arrays.binarySearch(changed, file);
+		return index < 0 ? EMPTY : removedMembers[index].clone();
+	}
+
+	/**
+	 * Checks if the two revisions are the same.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isEmpty() {
+		return added.length == 0 && removed.length == 0 && changed.length == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "Changeset [added=" + added.length + ", removed=" + removed.length + ", changed=" + changed.length + "]";
+	}
+
+}
@@ -0,0 +1,547 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.openrs.cache.ReferenceTable.ChildEntry;
+import net.openrs.cache.type.ConfigArchive;
+import net.openrs.util.ByteBufferUtils;
+
+/**
+ * A read-only {@link ReferenceTable} laid out as flat primitive arrays rather
+ * than maps of entry objects. It is decoded in a single pass over the buffer
+ * and answers the same queries as {@link ReferenceTable}; the {@link Entry}
+ * objects it hands out are views created on demand.
+ * <p />
+ * Use {@link ReferenceTable} to build or modify a table.
+ */
+public final class CompactReferenceTable {
+
+	/**
+	 * A view of a single entry within a {@link CompactReferenceTable}.
+	 */
+	public final class Entry {
+
+		/**
+		 * The position of this entry in the table's arrays.
+		 */
+		private final int index;
+
+		/**
+		 * Creates a new entry view.
+		 * 
+		 * @param index
+		 *            The position of the entry in the table's arrays.
+		 */
+		private Entry(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Gets the cache index for this entry
+		 * 
+		 * @return The cache index
+		 */
+		public int index() {
+			return index;
+		}
+
+		/**
+		 * Gets the maximum number of child entries.
+		 * 
+		 * @return The maximum number of child entries.
+		 */
+		public int capacity() {
+			int end = childStarts[index + 1];
+			return end == childStarts[index] ? 0 : childIds[end - 1] + 1;
+		}
+
+		/**
+		 * Gets the CRC32 checksum of this entry.
+		 * 
+		 * @return The CRC32 checksum.
+		 */
+		public int getCrc() {
+			return crcs[index];
+		}
+
+		/**
+		 * Gets the child entry with the specified id.
+		 * 
+		 * @param id
+		 *            The id.
+		 * @return The entry, or {@code null} if it does not exist.
+		 */
+		public ChildEntry getEntry(int id) {
+			int start = childStarts[index];
+			int child = Arrays.binarySearch(childIds, start, childStarts[index + 1], id);
+			if (child < 0)
+				return null;
+
+			ChildEntry entry = new ChildEntry(child - start);
+			if (childIdentifiers != null)
+				entry.setIdentifier(childIdentifiers[child]);
+			return entry;
+		}
+
+		/**
+		 * Gets the identifier of this entry.
+		 * 
+		 * @return The identifier.
+		 */
+		public int getIdentifier() {
+			return identifiers == null ? -1 : identifiers[index];
+		}
+
+		/**
+		 * Gets the version of this entry.
+		 * 
+		 * @return The version.
+		 */
+		public int getVersion() {
+			return versions[index];
+		}
+
+		/**
+		 * Gets the uncompressed size of this entry.
+		 * 
+		 * @return The uncompressed size.
+		 */
+		public int getUncompressed() {
+			return uncompressed == null ? 0 : uncompressed[index];
+		}
+
+		/**
+		 * Gets the compressed size of this entry.
+		 * 
+		 * @return The compressed size.
+		 */
+		public int getCompressed() {
+			return compressed == null ? 0 : compressed[index];
+		}
+
+		/**
+		 * Gets the hash this entry
+		 * 
+		 * @return The hash
+		 */
+		public int getHash() {
+			return hashes == null ? 0 : hashes[index];
+		}
+
+		/**
+		 * Gets a copy of the whirlpool digest of this entry.
+		 * 
+		 * @return The whirlpool digest.
+		 */
+		public byte[] getWhirlpool() {
+			byte[] whirlpool = new byte[64];
+			if (whirlpools != null)
+				System.arraycopy(whirlpools, index * 64, whirlpool, 0, 64);
+			return whirlpool;
+		}
+
+		/**
+		 * Gets the number of actual child entries.
+		 * 
+		 * @return The number of actual child entries.
+		 */
+		public int size() {
+			return childStarts[index + 1] - childStarts[index];
+		}
+
+	}
+
+	/**
+	 * Decodes a reference table.
+	 * 
+	 * @param buffer
+	 *            The buffer.
+	 * @return The table.
+	 */
+	public static CompactReferenceTable decode(ByteBuffer buffer) {
+		CompactReferenceTable table = new CompactReferenceTable();
+
+		/* read header */
+		int format = table.format = buffer.get() & 0xFF;
+		if (format < 5 || format > 7) {
+			throw new RuntimeException();
+		}
+		if (format >= 6) {
+			table.version = buffer.getInt();
+		}
+
+		int flags = table.flags = buffer.get() & 0xFF;
+
+		/* read the ids, which are delta encoded and so already sorted */
+		int size = getSmart(buffer, format);
+		int[] ids = table.ids = new int[size];
+		for (int i = 0, id = 0; i < size; i++) {
+			id += getSmart(buffer, format);
+			ids[i] = id;
+		}
+
+		table.capacity = size == 0 ? 0 : ids[size - 1] + 1;
+		table.slots = new int[table.capacity];
+		Arrays.fill(table.slots, -1);
+		for (int i = 0; i < size; i++)
+			table.slots[ids[i]] = i;
+
+		/* read the columns in the order they are stored */
+		if ((flags & ReferenceTable.FLAG_IDENTIFIERS) != 0)
+			table.identifiers = getInts(buffer, size);
+
+		table.crcs = getInts(buffer, size);
+
+		if ((flags & ReferenceTable.FLAG_HASH) != 0)
+			table.hashes = getInts(buffer, size);
+
+		if ((flags & ReferenceTable.FLAG_WHIRLPOOL) != 0) {
+			table.whirlpools = new byte[size * 64];
+			buffer.get(table.whirlpools);
+		}
+
+		if ((flags & ReferenceTable.FLAG_SIZES) != 0) {
+			table.compressed = new int[size];
+			table.uncompressed = new int[size];
+			for (int i = 0; i < size; i++) {
+				table.compressed[i] = buffer.getInt();
+				table.uncompressed[i] = buffer.getInt();
+			}
+		}
+
+		table.versions = getInts(buffer, size);
+
+		/* read the child counts, which give the offsets into the flat arrays */
+		int[] childStarts = table.childStarts = new int[size + 1];
+		for (int i = 0; i < size; i++)
+			childStarts[i + 1] = childStarts[i] + getSmart(buffer, format);
+
+		int[] childIds = table.childIds = new int[childStarts[size]];
+		for (int i = 0; i < size; i++) {
+			for (int child = childStarts[i], id = 0; child < childStarts[i + 1]; child++) {
+				id += getSmart(buffer, format);
+				childIds[child] = id;
+			}
+		}
+
+		if ((flags & ReferenceTable.FLAG_IDENTIFIERS) != 0)
+			table.childIdentifiers = getInts(buffer, childIds.length);
+
+		return table;
+	}
+
+	/**
+	 * Reads a count or delta, which is a short before format 7 and a smart
+	 * integer from then on.
+	 * 
+	 * @param buffer
+	 *            The buffer.
+	 * @param format
+	 *            The format of the table.
+	 * @return The value.
+	 */
+	private static int getSmart(ByteBuffer buffer, int format) {
+		return format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF;
+	}
+
+	/**
+	 * Reads a column of integers.
+	 * 
+	 * @param buffer
+	 *            The buffer.
+	 * @param count
+	 *            The number of integers.
+	 * @return The integers.
+	 */
+	private static int[] getInts(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + count * 4);
+		return values;
+	}
+
+	/**
+	 * The format of this table.
+	 */
+	private int format;
+
+	/**
+	 * The version of this table.
+	 */
+	private int version;
+
+	/**
+	 * The flags of this table.
+	 */
+	private int flags;
+
+	/**
+	 * The maximum number of entries in this table.
+	 */
+	private int capacity;
+
+	/**
+	 * The ids of the entries, in ascending order.
+	 */
+	private int[] ids;
+
+	/**
+	 * The position of each id in the arrays, or {@code -1} if there is no
+	 * entry with that id.
+	 */
+	private int[] slots;
+
+	/**
+	 * The identifiers of the entries, or {@code null} if not present.
+	 */
+	private int[] identifiers;
+
+	/**
+	 * The CRC32 checksums of the entries.
+	 */
+	private int[] crcs;
+
+	/**
+	 * The hashes of the entries, or {@code null} if not present.
+	 */
+	private int[] hashes;
+
+	/**
+	 * The whirlpool digests of the entries, 64 bytes each, or {@code null} if
+	 * not present.
+	 */
+	private byte[] whirlpools;
+
+	/**
+	 * The compressed sizes of the entries, or {@code null} if not present.
+	 */
+	private int[] compressed;
+
+	/**
+	 * The uncompressed sizes of the entries, or {@code null} if not present.
+	 */
+	private int[] uncompressed;
+
+	/**
+	 * The versions of the entries.
+	 */
+	private int[] versions;
+
+	/**
+	 * The offset of each entry's children in {@link #childIds}, followed by
+	 * the total number of children.
+	 */
+	private int[] childStarts;
+
+	/**
+	 * The ids of the children of every entry, ascending within each entry.
+	 */
+	private int[] childIds;
+
+	/**
+	 * The identifiers of the children, or {@code null} if not present.
+	 */
+	private int[] childIdentifiers;
+
+	/**
+	 * The identifier lookup table, built on first use.
+	 */
+	private Identifiers lookup;
+
+	/**
+	 * Creates a new, empty table.
+	 */
+	private CompactReferenceTable() {
+
+	}
+
+	/**
+	 * Gets the maximum number of entries in this table.
+	 * 
+	 * @return The maximum number of entries.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the entry with the specified id, or {@code null} if it does not
+	 * exist.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The entry.
+	 */
+	public Entry getEntry(int id) {
+		int index = indexOf(id);
+		return index == -1 ? null : new Entry(index);
+	}
+
+	/**
+	 * Gets the entry with the specified id, or {@code null} if it does not
+	 * exist.
+	 * 
+	 * @param archive
+	 *            The config archive.
+	 * @return The entry.
+	 */
+	public Entry getEntry(ConfigArchive archive) {
+		return getEntry(archive.getID());
+	}
+
+	/**
+	 * Gets the child entry with the specified id, or {@code null} if it does
+	 * not exist.
+	 * 
+	 * @param id
+	 *            The parent id.
+	 * @param child
+	 *            The child id.
+	 * @return The entry.
+	 */
+	public ChildEntry getEntry(int id, int child) {
+		Entry entry = getEntry(id);
+		if (entry == null)
+			return null;
+
+		return entry.getEntry(child);
+	}
+
+	/**
+	 * Checks if there is an entry with the specified id.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean contains(int id) {
+		return indexOf(id) != -1;
+	}
+
+	/**
+	 * Gets the CRC32 checksum of an entry without creating a view of it.
+	 * 
+	 * @param id
+	 *            The id, which must have an entry.
+	 * @return The CRC32 checksum.
+	 */
+	public int getCrc(int id) {
+		return crcs[slots[id]];
+	}
+
+	/**
+	 * Gets the version of an entry without creating a view of it.
+	 * 
+	 * @param id
+	 *            The id, which must have an entry.
+	 * @return The version.
+	 */
+	public int getVersion(int id) {
+		return versions[slots[id]];
+	}
+
+	/**
+	 * Gets the ids of the entries in this table.
+	 * 
+	 * @return A copy of the ids, in ascending order.
+	 */
+	public int[] getIds() {
+		return ids.clone();
+	}
+
+	/**
+	 * Gets the flags of this table.
+	 * 
+	 * @return The flags.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Gets the format of this table.
+	 * 
+	 * @return The format.
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Gets the version of this table.
+	 * 
+	 * @return The version of this table.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the number of actual entries.
+	 * 
+	 * @return The number of actual entries.
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Gets the uncompressed size of the index
+	 * 
+	 * @return The size
+	 */
+	public int getArchiveSize() {
+		long sum = 0;
+		if (uncompressed != null) {
+			for (int size : uncompressed)
+				sum += size;
+		}
+		return (int) sum;
+	}
+
+	/**
+	 * Gets the name index of this table, which maps the hashed names of the
+	 * entries to their ids.
+	 * 
+	 * @return The name index.
+	 */
+	public Identifiers getIdentifiers() {
+		if (lookup == null)
+			lookup = identifiers == null ? new Identifiers(new int[0], new int[0]) : new Identifiers(ids, identifiers);
+		return lookup;
+	}
+
+	/**
+	 * Gets the position of an id in the arrays.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The position, or {@code -1} if there is no entry with that id.
+	 */
+	private int indexOf(int id) {
+		return id < 0 || id >= capacity ? -1 : slots[id];
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.io.IOException;
+
+/**
+ * A {@link Compactor} defragments the data file of a {@link FileStore} in
+ * place, while the store stays open for reading and writing. Files are visited
+ * one at a time and each one is moved into a single contiguous run of sectors,
+ * as close to the start of the data file as possible. Once every file has been
+ * visited, the free sectors at the end of the data file are truncated.
+ * <p />
+ * Compaction can be throttled, and stops between two files when the running
+ * thread is interrupted. The position of the compactor can be saved and handed
+ * to a new compactor to resume where it left off.
+ */
+public final class Compactor {
+
+	/**
+	 * The file store being compacted.
+	 */
+	private final FileStore store;
+
+	/**
+	 * The maximum number of bytes to move per second, or {@code 0} if
+	 * unthrottled.
+	 */
+	private long bytesPerSecond;
+
+	/**
+	 * The type of the next file to visit.
+	 */
+	private int type;
+
+	/**
+	 * The id of the next file to visit.
+	 */
+	private int file;
+
+	/**
+	 * The number of files moved so far.
+	 */
+	private int moved;
+
+	/**
+	 * The number of bytes moved so far.
+	 */
+	private long bytesMoved;
+
+	/**
+	 * Creates a new compactor which starts at the first file of the store.
+	 *
+	 * @param store
+	 *            The file store.
+	 */
+	public Compactor(FileStore store) {
+		this(store, 0, 0);
+	}
+
+	/**
+	 * Creates a new compactor which resumes at the specified file.
+	 *
+	 * @param store
+	 *            The file store.
+	 * @param type
+	 *            The type of the first file to visit.
+	 * @param file
+	 *            The id of the first file to visit.
+	 */
+	public Compactor(FileStore store, int type, int file) {
+		this.store = store;
+		this.type = type;
+		this.file = file;
+	}
+
+	/**
+	 * Sets the maximum number of bytes to move per second.
+	 *
+	 * @param bytesPerSecond
+	 *            The limit, or {@code 0} to remove it.
+	 */
+	public void setThrottle(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Compacts the store until every file has been visited or the current
+	 * thread is interrupted.
+	 *
+	 * @return {@code true} if compaction finished, {@code false} if it was
+	 *         interrupted and can be resumed.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public boolean run() throws IOException {
+		long start = System.nanoTime();
+		long budget = 0;
+
+		while (!isFinished()) {
+			if (Thread.currentThread().isInterrupted())
+				return false;
+
+			if (file >= store.getFileCount(type)) {
+				type = type == store.getTypeCount() - 1 ? 255 : type == 255 ? -1 : type + 1;
+				file = 0;
+				continue;
+			}
+
+			int bytes = store.relocate(type, file++);
+			if (bytes > 0) {
+				moved++;
+				bytesMoved += bytes;
+				budget += bytes;
+			}
+
+			/* sleep off anything we moved ahead of the throttle */
+			if (bytesPerSecond > 0 && budget > 0) {
+				long ahead = budget * 1000L / bytesPerSecond - (System.nanoTime() - start) / 1000000L;
+				if (ahead > 0) {
+					try {
+						Thread.sleep(ahead);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+		}
+
+		store.trim();
+		return true;
+	}
+
+	/**
+	 * Checks if every file has been visited.
+	 *
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isFinished() {
+		return type == -1;
+	}
+
+	/**
+	 * Gets the type of the next file to visit, or {@code -1} if compaction has
+	 * finished.
+	 *
+	 * @return The type.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the id of the next file to visit.
+	 *
+	 * @return The id.
+	 */
+	public int getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of files moved so far.
+	 *
+	 * @return The number of files.
+	 */
+	public int getMoved() {
+		return moved;
+	}
+
+	/**
+	 * Gets the number of bytes moved so far.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytesMoved() {
+		return bytesMoved;
+	}
+
+}
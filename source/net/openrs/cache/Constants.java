@@ -35,6 +35,8 @@ public final class Constants {
 	public static final String MAP_PATH = "./repository/maps/";
 	public static final String XTABLE_PATH = "./repository/xtea/tables/";
 	public static final String XMAP_PATH = "./repository/xtea/maps/";
+	public static final String XTABLE_STORE_PATH = "./repository/xtea/tables.dat";
+	public static final String XMAP_STORE_PATH = "./repository/xtea/maps.dat";
 	public static final String TYPE_PATH = "./repository/types/";
 	public static final String TRACK1_PATH = "./repository/songs/track1/";	
 	public static final String TRACK2_PATH = "./repository/songs/track2/";
@@ -22,9 +22,11 @@
 package net.openrs.cache;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
-import net.openrs.cache.util.CompressionUtils;
+import net.openrs.cache.util.CompressionCodec;
+import net.openrs.cache.util.CompressionCodecs;
 import net.openrs.cache.util.XTEAManager;
 import net.openrs.util.crypto.Xtea;
 
@@ -53,6 +55,13 @@ public final class Container {
 	 */
 	public static final int COMPRESSION_GZIP = 2;
 
+	/**
+	 * The maximum length of the uncompressed data in a container. Anything
+	 * larger means the container is corrupt or was decrypted with the wrong
+	 * keys.
+	 */
+	public static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
 	/**
 	 * Decodes and decompresses the container.
 	 * 
@@ -105,25 +114,25 @@ public final class Container {
 		} else {
 			/* grab the length of the uncompressed data */
 			int uncompressedLength = buffer.getInt();
+			if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_LENGTH) {
+				throw new IOException("Invalid uncompressed length");
+			}
 
-			/* grab the data */
-			byte[] compressed = new byte[length];
-			buffer.get(compressed);
-
-			/* uncompress it */
-			byte[] uncompressed;
-			if (type == COMPRESSION_BZIP2) {
-				uncompressed = CompressionUtils.bunzip2(compressed);
-			} else if (type == COMPRESSION_GZIP) {
-				uncompressed = CompressionUtils.gunzip(compressed);
-			} else {
-				throw new IOException("Invalid compression type");
+			/* view the compressed data in place */
+			if (length > buffer.remaining()) {
+				throw new BufferUnderflowException();
 			}
+			ByteBuffer compressed = buffer.slice();
+			compressed.limit(length);
+			buffer.position(buffer.position() + length);
 
-			/* check if the lengths are equal */
-			if (uncompressed.length != uncompressedLength) {
-				throw new IOException("Length mismatch. [ " + uncompressed.length + ", " + uncompressedLength + " ]");
+			/* uncompress it straight into an array of the right size */
+			CompressionCodec codec = CompressionCodecs.get(type);
+			if (codec == null) {
+				throw new IOException("Invalid compression type");
 			}
+			byte[] uncompressed = new byte[uncompressedLength];
+			codec.decompress(compressed, uncompressed);
 
 			/* decode the version if present */
 			int version = -1;
@@ -151,6 +160,11 @@ public final class Container {
 	 */
 	private int version;
 
+	/**
+	 * The level to compress at when this container is encoded.
+	 */
+	private int level = CompressionCodec.DEFAULT_LEVEL;
+
 	/**
 	 * Creates a new unversioned container.
 	 * 
@@ -210,16 +224,11 @@ public final class Container {
 		data.reset();
 
 		/* compress the data */
-		byte[] compressed;
-		if (type == COMPRESSION_NONE) {
-			compressed = bytes;
-		} else if (type == COMPRESSION_GZIP) {
-			compressed = CompressionUtils.gzip(bytes);
-		} else if (type == COMPRESSION_BZIP2) {
-			compressed = CompressionUtils.bzip2(bytes);
-		} else {
+		CompressionCodec codec = CompressionCodecs.get(type);
+		if (codec == null) {
 			throw new IOException("Invalid compression type");
 		}
+		byte[] compressed = codec.compress(bytes, level);
 
 		/* calculate the size of the header and trailer and allocate a buffer */
 		int header = 5 + (type == COMPRESSION_NONE ? 0 : 4) + (isVersioned() ? 2 : 0);
@@ -283,6 +292,15 @@ public final class Container {
 		return version;
 	}
 
+	/**
+	 * Gets the level this container is compressed at when it is encoded.
+	 * 
+	 * @return The level, or {@link CompressionCodec#DEFAULT_LEVEL}.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
 	/**
 	 * Checks if this container is versioned.
 	 * 
@@ -309,6 +327,18 @@ public final class Container {
 		this.type = type;
 	}
 
+	/**
+	 * Sets the level this container is compressed at when it is encoded.
+	 * 
+	 * @param level
+	 *            The level, one of the levels of the type's
+	 *            {@link CompressionCodec}, or
+	 *            {@link CompressionCodec#DEFAULT_LEVEL}.
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
 	/**
 	 * Sets the version of this container.
 	 * 
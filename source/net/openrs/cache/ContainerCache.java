@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A {@link ContainerCache} keeps recently read {@link Container}s in their
+ * decoded form, so that hot files are not decompressed and decrypted again on
+ * every read. It is bounded by the total size of the decompressed data and
+ * evicts the least recently used container first.
+ * <p />
+ * Each entry is keyed by the type and id of its file and remembers the keys
+ * the file was decrypted with. A read with different keys is a miss and
+ * replaces the entry. Every container handed out is a fresh copy over a
+ * shared, read-only view of the data.
+ */
+public final class ContainerCache {
+
+	/**
+	 * A decoded container and the keys it was decrypted with.
+	 */
+	private static final class Node {
+
+		/**
+		 * The keys the container was decrypted with.
+		 */
+		private final int[] keys;
+
+		/**
+		 * The container.
+		 */
+		private final Container container;
+
+		/**
+		 * The size of the decompressed data.
+		 */
+		private final int size;
+
+		/**
+		 * Creates a new node.
+		 * 
+		 * @param keys
+		 *            The keys the container was decrypted with.
+		 * @param container
+		 *            The container.
+		 * @param size
+		 *            The size of the decompressed data.
+		 */
+		public Node(int[] keys, Container container, int size) {
+			this.keys = keys;
+			this.container = container;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * The cached containers, in access order.
+	 */
+	private final LinkedHashMap<Long, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The maximum size of the decompressed data held by this cache.
+	 */
+	private final long capacity;
+
+	/**
+	 * The size of the decompressed data currently held.
+	 */
+	private long size;
+
+	/**
+	 * The number of invalidations so far, used to drop containers which were
+	 * read before a write but put after it.
+	 */
+	private long generation;
+
+	/**
+	 * The number of reads served from this cache.
+	 */
+	private long hits;
+
+	/**
+	 * The number of reads which had to decode the container.
+	 */
+	private long misses;
+
+	/**
+	 * The number of containers evicted to make room for others.
+	 */
+	private long evictions;
+
+	/**
+	 * Creates a new container cache.
+	 * 
+	 * @param capacity
+	 *            The maximum size of the decompressed data held, in bytes.
+	 */
+	public ContainerCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Gets a cached container.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The id of the file.
+	 * @param keys
+	 *            The keys the file is decrypted with.
+	 * @return A copy of the container, or {@code null} if it is not cached.
+	 */
+	synchronized Container get(int type, int file, int[] keys) {
+		Node node = nodes.get(key(type, file));
+		if (node == null || !Arrays.equals(node.keys, keys)) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return copy(node.container);
+	}
+
+	/**
+	 * Gets the generation of this cache, which must be passed to
+	 * {@link #put} for a container read after this call.
+	 * 
+	 * @return The generation.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Caches a container, unless a file was invalidated since it was read.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The id of the file.
+	 * @param keys
+	 *            The keys the file was decrypted with.
+	 * @param container
+	 *            The container.
+	 * @param generation
+	 *            The generation of this cache before the file was read.
+	 */
+	synchronized void put(int type, int file, int[] keys, Container container, long generation) {
+		int size = container.getData().limit();
+		if (generation != this.generation || size > capacity)
+			return;
+
+		Node old = nodes.put(key(type, file), new Node(keys.clone(), copy(container), size));
+		if (old != null)
+			this.size -= old.size;
+		this.size += size;
+
+		/* evict the least recently used containers until we fit again */
+		Iterator<Node> it = nodes.values().iterator();
+		while (this.size > capacity && it.hasNext()) {
+			this.size -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops a file from this cache, as it has been written.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The id of the file.
+	 */
+	synchronized void invalidate(int type, int file) {
+		generation++;
+
+		Node node = nodes.remove(key(type, file));
+		if (node != null)
+			size -= node.size;
+	}
+
+	/**
+	 * Drops every container from this cache.
+	 */
+	public synchronized void clear() {
+		generation++;
+		nodes.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the maximum size of the decompressed data held by this cache.
+	 * 
+	 * @return The capacity, in bytes.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the size of the decompressed data currently held by this cache.
+	 * 
+	 * @return The size, in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of containers currently held by this cache.
+	 * 
+	 * @return The number of containers.
+	 */
+	public synchronized int getCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * Gets the number of reads served from this cache.
+	 * 
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of reads which had to decode their container.
+	 * 
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of containers evicted to make room for others.
+	 * 
+	 * @return The number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ContainerCache [size=" + size + "/" + capacity + ", count=" + nodes.size() + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	/**
+	 * Copies a container, sharing a read-only view of its data and keeping
+	 * its version, if it has one, and its compression level.
+	 * 
+	 * @param container
+	 *            The container.
+	 * @return The copy.
+	 */
+	private static Container copy(Container container) {
+		Container copy = new Container(container.getType(), container.getData(),
+				container.isVersioned() ? container.getVersion() : -1);
+		copy.setLevel(container.getLevel());
+		return copy;
+	}
+
+	/**
+	 * Gets the key of a file in the map of containers.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The id of the file.
+	 * @return The key.
+	 */
+	private static Long key(int type, int file) {
+		return (long) type << 32 | file & 0xFFFFFFFFL;
+	}
+
+}
@@ -26,23 +26,105 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
 import net.openrs.cache.type.CacheIndex;
+import net.openrs.util.ByteBufferPool;
+import net.openrs.util.ByteBufferUtils;
 import net.openrs.util.FileChannelUtils;
+import net.openrs.util.MappedFile;
 
 /**
  * A file store holds multiple files inside a "virtual" file system made up of
  * several index files and a single data file.
+ * <p />
+ * A file store may be shared between threads. Reads use positional I/O and
+ * run without taking a lock: each read records a stamp before walking the
+ * sector chain and is only retried under a shared read lock if a write
+ * completed in the meantime. Writes take an exclusive write lock, so a reader
+ * never observes a half-written file.
  * 
  * @author Graham
  * @author `Discardedx2
  */
 public final class FileStore implements Closeable {
 
+	/**
+	 * An option which changes how a {@link FileStore} accesses its files.
+	 */
+	public enum Option {
+
+		/**
+		 * Reads the data and index files through memory-mapped windows, walking
+		 * sector chains directly over the mapped memory instead of issuing one
+		 * positional read per sector. Writes still go through the channels.
+		 */
+		MAPPED,
+
+		/**
+		 * Builds a {@link SectorMap} when the store is opened by walking the
+		 * sector chain of every file, and allocates sectors for writes from it.
+		 * Sectors which are orphaned or freed by a write are reused before the
+		 * data file is grown.
+		 */
+		REUSE_SECTORS,
+
+		/**
+		 * Routes every write through a write-ahead {@link Journal} kept in
+		 * {@code main_file_cache.jnl}, so that each {@link WriteBatch} becomes
+		 * durable atomically. Any batch left behind by a crash is replayed
+		 * when the store is opened. Concurrent commits share a single fsync.
+		 */
+		JOURNALED
+
+	}
+
+	/**
+	 * The per-thread scratch buffer which index entries and sectors are read
+	 * into when the store is not mapped.
+	 */
+	private static final ThreadLocal<ByteBuffer> sectorBuffer = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(Sector.SIZE));
+
+	/**
+	 * The maximum number of sectors fetched by a single read when the store is
+	 * not mapped.
+	 */
+	private static final int MAX_RUN_SECTORS = 128;
+
+	/**
+	 * The per-thread buffer which runs of consecutive sectors are read into
+	 * when the store is not mapped.
+	 */
+	private static final ThreadLocal<ByteBuffer> runBuffer = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(MAX_RUN_SECTORS * Sector.SIZE));
+
+	/**
+	 * A read from the store, which may be repeated if it raced with a write.
+	 */
+	@FunctionalInterface
+	private interface StoreRead<T> {
+
+		/**
+		 * Performs the read.
+		 * 
+		 * @return The result.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		T read() throws IOException;
+
+	}
+
 	/**
 	 * Creates the file store stored in the specified directory.
 	 * 
@@ -148,6 +230,57 @@ public final class FileStore implements Closeable {
 		return open(new File(root));
 	}
 
+	/**
+	 * Opens the file store stored in the specified directory.
+	 * 
+	 * @param root
+	 *            The directory containing the index and data files.
+	 * @param options
+	 *            The options to open the file store with.
+	 * @return The file store.
+	 * @throws FileNotFoundException
+	 *             if any of the {@code main_file_cache.*} files could not be
+	 *             found.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static FileStore open(File root, Option... options) throws IOException {
+		FileStore store = open(root);
+		for (Option option : options) {
+			switch (option) {
+			case MAPPED:
+				store.map();
+				break;
+			case REUSE_SECTORS:
+				store.sectorMap = new SectorMap(store.getSectorCount());
+				store.scan(store.sectorMap);
+				break;
+			case JOURNALED:
+				store.journal = Journal.open(new File(root, "main_file_cache.jnl"), store);
+				break;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Opens the file store stored in the specified directory.
+	 * 
+	 * @param root
+	 *            The directory containing the index and data files.
+	 * @param options
+	 *            The options to open the file store with.
+	 * @return The file store.
+	 * @throws FileNotFoundException
+	 *             if any of the {@code main_file_cache.*} files could not be
+	 *             found.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static FileStore open(String root, Option... options) throws IOException {
+		return open(new File(root), options);
+	}
+
 	/**
 	 * The data file.
 	 */
@@ -163,6 +296,37 @@ public final class FileStore implements Closeable {
 	 */
 	private final FileChannel metaChannel;
 
+	/**
+	 * The mapped data file, or {@code null} if the store is not mapped.
+	 */
+	private MappedFile mappedData;
+
+	/**
+	 * The mapped index files, or {@code null} if the store is not mapped.
+	 */
+	private MappedFile[] mappedIndexes;
+
+	/**
+	 * The mapped 'meta' index file, or {@code null} if the store is not mapped.
+	 */
+	private MappedFile mappedMeta;
+
+	/**
+	 * The map of used sectors, or {@code null} if sectors are not reused.
+	 */
+	private SectorMap sectorMap;
+
+	/**
+	 * The journal writes go through, or {@code null} if writes are not
+	 * journaled.
+	 */
+	private Journal journal;
+
+	/**
+	 * The lock which orders writes against reads.
+	 */
+	private final StampedLock lock = new StampedLock();
+
 	/**
 	 * Creates a new file store.
 	 * 
@@ -179,13 +343,41 @@ public final class FileStore implements Closeable {
 		this.metaChannel = meta;
 	}
 
+	/**
+	 * Maps the data and index files into memory, switching reads over to the
+	 * mapped read path.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void map() throws IOException {
+		mappedIndexes = new MappedFile[indexChannels.length];
+		for (int i = 0; i < indexChannels.length; i++)
+			mappedIndexes[i] = new MappedFile(indexChannels[i], Index.SIZE);
+
+		mappedMeta = new MappedFile(metaChannel, Index.SIZE);
+		mappedData = new MappedFile(dataChannel, Sector.SIZE);
+	}
+
+	/**
+	 * Closes the channels backing this file store. Mapped windows are not
+	 * unmapped explicitly and are released when they are garbage collected.
+	 */
 	public void close() throws IOException {
-		dataChannel.close();
+		long stamp = lock.writeLock();
+		try {
+			if (journal != null)
+				journal.close();
+
+			dataChannel.close();
 
-		for (FileChannel channel : indexChannels)
-			channel.close();
+			for (FileChannel channel : indexChannels)
+				channel.close();
 
-		metaChannel.close();
+			metaChannel.close();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 
 	public boolean hasData() throws IOException {
@@ -247,55 +439,466 @@ public final class FileStore implements Closeable {
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	@SuppressWarnings("resource")
 	public ByteBuffer read(int type, int id) throws IOException {
+		return read(() -> {
+			Index index = readIndex(type, id);
+
+			ByteBuffer data = ByteBuffer.allocate(index.getSize());
+			readSectors(type, id, index, data);
+			return (ByteBuffer) data.flip();
+		});
+	}
+
+	/**
+	 * Reads a file into the specified buffer, starting at its current
+	 * position. The buffer may be direct. If an error occurs part of the file
+	 * may already have been copied into the buffer.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param dst
+	 *            The buffer to read the file into.
+	 * @return The size of the file in bytes.
+	 * @throws BufferOverflowException
+	 *             if the file does not fit into the remaining space of the
+	 *             buffer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public int read(int type, int id, ByteBuffer dst) throws IOException {
+		int position = dst.position();
+		return read(() -> {
+			dst.position(position);
+
+			Index index = readIndex(type, id);
+			if (dst.remaining() < index.getSize())
+				throw new BufferOverflowException();
+
+			readSectors(type, id, index, dst);
+			return index.getSize();
+		});
+	}
+
+	/**
+	 * Reads a file into a buffer acquired from the specified pool. The caller
+	 * owns the returned buffer and should hand it back to the pool with
+	 * {@link ByteBufferPool#release(ByteBuffer)} once it is done with it.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param pool
+	 *            The pool to acquire the buffer from.
+	 * @return A {@link ByteBuffer} containing the contents of the file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public ByteBuffer read(int type, int id, ByteBufferPool pool) throws IOException {
+		return read(() -> {
+			Index index = readIndex(type, id);
+
+			ByteBuffer data = pool.acquire(index.getSize());
+			try {
+				readSectors(type, id, index, data);
+			} catch (IOException | RuntimeException ex) {
+				pool.release(data);
+				throw ex;
+			}
+			return (ByteBuffer) data.flip();
+		}, pool::release);
+	}
+
+	/**
+	 * Gets the size of a file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The size of the file in bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public int getFileSize(int type, int id) throws IOException {
+		return read(() -> readIndex(type, id).getSize());
+	}
+
+	/**
+	 * Gets the first sector of a file, which is used to order batched reads.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The first sector.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	int getSector(int type, int id) throws IOException {
+		return read(() -> readIndex(type, id).getSector());
+	}
+
+	/**
+	 * Performs a read without locking, falling back to repeating it under the
+	 * read lock if a write took place while it was running.
+	 * 
+	 * @param read
+	 *            The read.
+	 * @return The result of the read.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private <T> T read(StoreRead<T> read) throws IOException {
+		return read(read, null);
+	}
+
+	/**
+	 * Performs a read without locking, falling back to repeating it under the
+	 * read lock if a write took place while it was running.
+	 * 
+	 * @param read
+	 *            The read.
+	 * @param discard
+	 *            Called with the result of an optimistic read which turned out
+	 *            to be torn, such as to release its buffer, or {@code null}.
+	 * @return The result of the read.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private <T> T read(StoreRead<T> read, Consumer<T> discard) throws IOException {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = read.read();
+				if (lock.validate(stamp))
+					return result;
+				if (discard != null)
+					discard.accept(result);
+			} catch (IOException | RuntimeException ex) {
+				/* a torn read can fail in any way, only trust failures we can validate */
+				if (lock.validate(stamp))
+					throw ex;
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return read.read();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Reads the {@link Index} of a file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The index.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	private Index readIndex(int type, int id) throws IOException {
 		if ((type < 0 || type >= indexChannels.length) && type != 255)
 			throw new FileNotFoundException();
 
-		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
-
 		long ptr = (long) id * (long) Index.SIZE;
-		if (ptr < 0 || ptr >= indexChannel.size()) {
-			throw new FileNotFoundException();
+
+		if (mappedData != null) {
+			MappedFile indexFile = type == 255 ? mappedMeta : mappedIndexes[type];
+			if (ptr < 0 || ptr >= indexFile.size())
+				throw new FileNotFoundException();
+
+			ByteBuffer buf = indexFile.window(ptr, Index.SIZE);
+			int offset = indexFile.offset(ptr);
+			return new Index(ByteBufferUtils.getMedium(buf, offset), ByteBufferUtils.getMedium(buf, offset + 3));
 		}
 
-		ByteBuffer buf = ByteBuffer.allocate(Index.SIZE);
+		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+		if (ptr < 0 || ptr >= indexChannel.size())
+			throw new FileNotFoundException();
+
+		ByteBuffer buf = sectorBuffer.get();
+		buf.clear();
+		buf.limit(Index.SIZE);
 		FileChannelUtils.readFully(indexChannel, buf, ptr);
 
-		Index index = Index.decode((ByteBuffer) buf.flip());
+		return Index.decode((ByteBuffer) buf.flip());
+	}
+
+	/**
+	 * Walks the sector chain of a file, copying the data of each sector
+	 * straight into the destination buffer. Sector headers are parsed in
+	 * place, either from the mapped data file or from a per-thread run buffer.
+	 * <p />
+	 * When the store is not mapped, every sector the file could still occupy
+	 * is fetched with one read on the assumption that the chain is laid out
+	 * contiguously, and the headers are then checked one by one as usual. A
+	 * new run is only read once the chain leaves the sectors already fetched,
+	 * so a contiguous file costs a single read. After the chain jumps
+	 * elsewhere only one sector is fetched, and the runs double in length
+	 * again only while the chain carries on where the last run ended, so a
+	 * fragmented file never reads much more than it uses.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param index
+	 *            The index of the file.
+	 * @param dst
+	 *            The buffer to read the file into.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void readSectors(int type, int id, Index index, ByteBuffer dst) throws IOException {
+		boolean extended = id > 0xFFFF;
+		int headerSize = extended ? Sector.EXTENDED_HEADER_SIZE : Sector.HEADER_SIZE;
+		int dataSize = extended ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
 
-		ByteBuffer data = ByteBuffer.allocate(index.getSize());
-		buf = ByteBuffer.allocate(Sector.SIZE);
+		ByteBuffer window = null, buf = null;
+		int offset = 0;
+		long runStart = 0;
+		int runLength = 0;
+		int speculation = MAX_RUN_SECTORS;
 
 		int chunk = 0, remaining = index.getSize();
-		ptr = (long) index.getSector() * (long) Sector.SIZE;
+		long ptr = (long) index.getSector() * (long) Sector.SIZE;
 		do {
+			if (mappedData != null) {
+				ByteBuffer next = mappedData.window(ptr, Sector.SIZE);
+				if (next != window) {
+					window = next;
+					buf = next.duplicate();
+				}
+				offset = mappedData.offset(ptr);
+			} else {
+				if (ptr < runStart || ptr + Sector.SIZE > runStart + runLength) {
+					/* only keep speculating while the chain stays contiguous */
+					if (runLength > 0)
+						speculation = ptr == runStart + runLength ? Math.min(speculation * 2, MAX_RUN_SECTORS) : 1;
+					int sectors = Math.min((remaining + dataSize - 1) / dataSize, speculation);
+
+					buf = runBuffer.get();
+					buf.clear();
+					buf.limit(Math.max(sectors, 1) * Sector.SIZE);
+
+					runStart = ptr;
+					runLength = FileChannelUtils.readAtLeast(dataChannel, buf, ptr, Sector.SIZE);
+				}
+				offset = (int) (ptr - runStart);
+			}
+
+			/* copy the payload without going through an intermediate array */
 			buf.clear();
-			FileChannelUtils.readFully(dataChannel, buf, ptr);
-			boolean extended = id > 0xFFFF;
-			Sector sector = extended ? Sector.decodeExtended((ByteBuffer) buf.flip())
-					: Sector.decode((ByteBuffer) buf.flip());
-			int dataSize = extended ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
+			buf.position(offset + headerSize);
+			buf.limit(offset + headerSize + Math.min(remaining, dataSize));
+			dst.put(buf);
+
 			if (remaining > dataSize) {
-				data.put(sector.getData(), 0, dataSize);
 				remaining -= dataSize;
 
-				if (sector.getType() != type)
+				int sectorId = extended ? buf.getInt(offset) : buf.getShort(offset) & 0xFFFF;
+				int sectorChunk = buf.getShort(offset + headerSize - 6) & 0xFFFF;
+				int nextSector = ByteBufferUtils.getMedium(buf, offset + headerSize - 4);
+				int sectorType = buf.get(offset + headerSize - 1) & 0xFF;
+
+				if (sectorType != type)
 					throw new IOException("File type mismatch.");
 
-				if (sector.getId() != id)
+				if (sectorId != id)
 					throw new IOException("File id mismatch.");
 
-				if (sector.getChunk() != chunk++)
+				if (sectorChunk != chunk++)
 					throw new IOException("Chunk mismatch.");
 
-				ptr = (long) sector.getNextSector() * (long) Sector.SIZE;
+				ptr = (long) nextSector * (long) Sector.SIZE;
 			} else {
-				data.put(sector.getData(), 0, remaining);
 				remaining = 0;
 			}
 		} while (remaining > 0);
-		return (ByteBuffer) data.flip();
+	}
+
+	/**
+	 * Reads the header of a sector and checks that it holds the specified
+	 * chunk of a file.
+	 * 
+	 * @param sector
+	 *            The sector.
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param chunk
+	 *            The chunk of the file.
+	 * @return The next sector of the chain, {@code 0} at the end of the chain,
+	 *         or {@code -1} if the sector does not hold the chunk.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private int nextSector(int sector, int type, int id, int chunk) throws IOException {
+		long ptr = (long) sector * (long) Sector.SIZE;
+		if (sector <= 0 || ptr + Sector.SIZE > dataChannel.size())
+			return -1;
+
+		boolean extended = id > 0xFFFF;
+		int headerSize = extended ? Sector.EXTENDED_HEADER_SIZE : Sector.HEADER_SIZE;
+
+		ByteBuffer buf;
+		int offset;
+		if (mappedData != null) {
+			buf = mappedData.window(ptr, Sector.SIZE);
+			offset = mappedData.offset(ptr);
+		} else {
+			buf = sectorBuffer.get();
+			buf.clear();
+			buf.limit(headerSize);
+			FileChannelUtils.readFully(dataChannel, buf, ptr);
+			offset = 0;
+		}
+
+		int sectorId = extended ? buf.getInt(offset) : buf.getShort(offset) & 0xFFFF;
+		int sectorChunk = buf.getShort(offset + headerSize - 6) & 0xFFFF;
+		int nextSector = ByteBufferUtils.getMedium(buf, offset + headerSize - 4);
+		int sectorType = buf.get(offset + headerSize - 1) & 0xFF;
+
+		if (sectorType != type || sectorId != id || sectorChunk != chunk)
+			return -1;
+
+		return nextSector;
+	}
+
+	/**
+	 * Gets the number of sectors in the data file, including sector zero.
+	 * 
+	 * @return The number of sectors.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private int getSectorCount() throws IOException {
+		return (int) ((dataChannel.size() + Sector.SIZE - 1) / Sector.SIZE);
+	}
+
+	/**
+	 * Gets the number of sectors a file of the specified size occupies.
+	 * 
+	 * @param id
+	 *            The id of the file.
+	 * @param size
+	 *            The size of the file in bytes.
+	 * @return The number of sectors.
+	 */
+	private static int sectorCount(int id, int size) {
+		int dataSize = id > 0xFFFF ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
+		return Math.max(1, (size + dataSize - 1) / dataSize);
+	}
+
+	/**
+	 * Gets the sectors of a file, in chain order. The walk stops at the first
+	 * sector which does not belong to the file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The sectors, or an empty array if the file does not exist.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private int[] chain(int type, int id) throws IOException {
+		if (id >= getFileCount(type))
+			return new int[0];
+
+		Index index = readIndex(type, id);
+		int[] sectors = new int[sectorCount(id, index.getSize())];
+
+		int count = 0;
+		for (int sector = index.getSector(); count < sectors.length; count++) {
+			int next = nextSector(sector, type, id, count);
+			if (next == -1)
+				break;
+
+			sectors[count] = sector;
+			sector = next;
+		}
+
+		return count == sectors.length ? sectors : Arrays.copyOf(sectors, count);
+	}
+
+	/**
+	 * Walks the sector chain of every file in the store.
+	 * 
+	 * @param map
+	 *            The map to mark the used sectors in, or {@code null}.
+	 * @return The fragmentation statistics of the data file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private FragmentationStats scan(SectorMap map) throws IOException {
+		int total = getSectorCount();
+		BitSet used = new BitSet(total);
+		int files = 0, fragmented = 0, extents = 0;
+
+		for (int type = 0; type <= indexChannels.length; type++) {
+			int indexType = type == indexChannels.length ? 255 : type;
+
+			for (int id = 0; id < getFileCount(indexType); id++) {
+				Index index = readIndex(indexType, id);
+				if (index.getSector() <= 0)
+					continue;
+
+				int count = sectorCount(id, index.getSize());
+				int sector = index.getSector(), previous = -1, fileExtents = 0;
+				for (int chunk = 0; chunk < count && sector > 0 && sector < total; chunk++) {
+					/* mark the sector even if it is not ours, we must never clobber it */
+					used.set(sector);
+					if (map != null)
+						map.mark(sector);
+
+					if (sector != previous + 1)
+						fileExtents++;
+
+					int next = nextSector(sector, indexType, id, chunk);
+					if (next == -1)
+						break;
+
+					previous = sector;
+					sector = next;
+				}
+
+				if (fileExtents > 0) {
+					files++;
+					extents += fileExtents;
+					if (fileExtents > 1)
+						fragmented++;
+				}
+			}
+		}
+
+		return new FragmentationStats(Math.max(total - 1, 0), used.cardinality(), files, fragmented, extents);
+	}
+
+	/**
+	 * Computes fragmentation statistics by walking the sector chain of every
+	 * file in the store.
+	 * 
+	 * @return The fragmentation statistics.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public FragmentationStats getFragmentationStats() throws IOException {
+		long stamp = lock.readLock();
+		try {
+			return scan(null);
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	/**
@@ -311,6 +914,121 @@ public final class FileStore implements Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public void write(int type, int id, ByteBuffer data) throws IOException {
+		checkWrite(type, id);
+
+		if (journal != null) {
+			WriteBatch batch = new WriteBatch();
+			batch.add(type, id, data);
+			data.position(data.limit());
+
+			journal.commit(batch);
+			return;
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			writeFile(type, id, data);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Writes a batch of files. If the store is journaled the batch becomes
+	 * durable atomically, otherwise the files are simply written one after
+	 * another while holding the write lock.
+	 * 
+	 * @param batch
+	 *            The batch.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void write(WriteBatch batch) throws IOException {
+		if (batch.isEmpty())
+			return;
+
+		/* reject bad files up front, a journaled batch has to apply cleanly */
+		for (WriteBatch.Entry entry : batch.getEntries())
+			checkWrite(entry.getType(), entry.getId());
+
+		if (journal != null) {
+			journal.commit(batch);
+		} else {
+			apply(Collections.singletonList(batch), false);
+		}
+	}
+
+	/**
+	 * Checks that a file can be written, so that a bad write is rejected
+	 * before it reaches the journal rather than when it is applied.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @throws FileNotFoundException
+	 *             if the type does not exist.
+	 * @throws IOException
+	 *             if the id is negative.
+	 */
+	private void checkWrite(int type, int id) throws IOException {
+		if ((type < 0 || type >= indexChannels.length) && type != 255)
+			throw new FileNotFoundException();
+
+		if (id < 0)
+			throw new IOException();
+	}
+
+	/**
+	 * Applies batches of writes to the store under a single write lock.
+	 * 
+	 * @param batches
+	 *            The batches.
+	 * @param force
+	 *            A flag indicating if the data file and every index file
+	 *            written to should be forced to disk afterwards.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void apply(List<WriteBatch> batches, boolean force) throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			BitSet touched = new BitSet();
+			for (WriteBatch batch : batches) {
+				for (WriteBatch.Entry entry : batch.getEntries()) {
+					writeFile(entry.getType(), entry.getId(), entry.getData());
+					touched.set(entry.getType());
+				}
+			}
+
+			if (force) {
+				dataChannel.force(false);
+				for (int type = touched.nextSetBit(0); type != -1; type = touched.nextSetBit(type + 1))
+					(type == 255 ? metaChannel : indexChannels[type]).force(false);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Writes a file. The caller must hold the write lock.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param data
+	 *            A {@link ByteBuffer} containing the contents of the file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void writeFile(int type, int id, ByteBuffer data) throws IOException {
+		if (sectorMap != null) {
+			writeAllocated(type, id, data);
+			return;
+		}
+
 		data.mark();
 		if (!write(type, id, data, true)) {
 			data.reset();
@@ -318,6 +1036,198 @@ public final class FileStore implements Closeable {
 		}
 	}
 
+	/**
+	 * Writes a file, allocating its sectors from the {@link SectorMap}. The
+	 * existing sectors of the file are overwritten in place, any extra sectors
+	 * come from the map and any sectors left over are freed.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param data
+	 *            A {@link ByteBuffer} containing the contents of the file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	private void writeAllocated(int type, int id, ByteBuffer data) throws IOException {
+		if ((type < 0 || type >= indexChannels.length) && type != 255)
+			throw new FileNotFoundException();
+
+		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+
+		long ptr = (long) id * (long) Index.SIZE;
+		if (ptr < 0)
+			throw new IOException();
+
+		int size = data.remaining();
+		int count = sectorCount(id, size);
+
+		/* reuse the sectors the file already occupies, then allocate the rest */
+		int[] old = chain(type, id);
+		int[] sectors = Arrays.copyOf(old, count);
+		int reused = Math.min(old.length, count);
+		if (reused < count) {
+			int[] extra = sectorMap.allocate(count - reused, reused > 0 ? sectors[reused - 1] + 1 : 0);
+			System.arraycopy(extra, 0, sectors, reused, extra.length);
+		}
+
+		writeChain(indexChannel, type, id, data, sectors, false);
+
+		/* the file has shrunk, give the tail of the old chain back */
+		for (int i = count; i < old.length; i++)
+			sectorMap.free(old[i]);
+	}
+
+	/**
+	 * Writes the data of a file into the specified sectors, then points its
+	 * index at them.
+	 * 
+	 * @param indexChannel
+	 *            The index file of the file's type.
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param data
+	 *            A {@link ByteBuffer} containing the contents of the file.
+	 * @param sectors
+	 *            The sectors to write the file into, in chain order.
+	 * @param force
+	 *            If the sectors should reach the disk before the index is
+	 *            written, and the index before this method returns.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void writeChain(FileChannel indexChannel, int type, int id, ByteBuffer data, int[] sectors,
+			boolean force) throws IOException {
+		Index index = new Index(data.remaining(), sectors[0]);
+
+		int dataSize = id > 0xFFFF ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
+		for (int chunk = 0; chunk < sectors.length; chunk++) {
+			byte[] bytes = new byte[dataSize];
+			data.get(bytes, 0, Math.min(dataSize, data.remaining()));
+
+			int nextSector = chunk + 1 < sectors.length ? sectors[chunk + 1] : 0;
+			Sector sector = new Sector(type, id, chunk, nextSector, bytes);
+			dataChannel.write(sector.encode(), (long) sectors[chunk] * (long) Sector.SIZE);
+		}
+
+		/* only point the index at the sectors once they hold the new data */
+		if (force)
+			dataChannel.force(false);
+		indexChannel.write(index.encode(), (long) id * (long) Index.SIZE);
+		if (force)
+			indexChannel.force(false);
+	}
+
+	/**
+	 * Gets the {@link SectorMap} of this store, walking every sector chain to
+	 * build it first if the store was not opened with
+	 * {@link Option#REUSE_SECTORS}. Once built, writes allocate from it.
+	 * 
+	 * @return The sector map.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	SectorMap getSectorMap() throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			if (sectorMap == null) {
+				SectorMap map = new SectorMap(getSectorCount());
+				scan(map);
+				sectorMap = map;
+			}
+			return sectorMap;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Moves a file into a single contiguous run of sectors, as close to the
+	 * start of the data file as possible. Files which are already contiguous
+	 * are only moved if an earlier run of free sectors can hold them. The new
+	 * sectors are written before the index is switched over to them, so
+	 * readers see either the old or the new copy of the file. The new sectors
+	 * are forced to disk before the index is written, and the index before the
+	 * old sectors are freed, so a crash at any point leaves the index pointing
+	 * at a complete copy.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The number of bytes moved, or {@code 0} if the file was left
+	 *         where it was.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	int relocate(int type, int id) throws IOException {
+		SectorMap map = getSectorMap();
+
+		long stamp = lock.writeLock();
+		try {
+			Index index = readIndex(type, id);
+			int[] old = chain(type, id);
+			if (old.length == 0 || old.length != sectorCount(id, index.getSize()))
+				return 0;
+
+			boolean contiguous = true;
+			for (int i = 1; i < old.length && contiguous; i++)
+				contiguous = old[i] == old[i - 1] + 1;
+
+			int start = map.findRun(old.length);
+			if (contiguous && start >= old[0])
+				return 0;
+
+			ByteBuffer data = ByteBuffer.allocate(index.getSize());
+			readSectors(type, id, index, data);
+			data.flip();
+
+			int[] sectors = map.allocate(old.length, start);
+			writeChain(type == 255 ? metaChannel : indexChannels[type], type, id, data, sectors, true);
+
+			/* the old sectors can only be reused once nothing on disk points at them */
+			for (int sector : old)
+				map.free(sector);
+
+			return index.getSize();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Truncates the free sectors at the end of the data file. Mapped stores
+	 * are left untouched, as readers may still hold windows over the tail.
+	 * 
+	 * @return The number of bytes the data file shrank by.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	long trim() throws IOException {
+		SectorMap map = getSectorMap();
+
+		long stamp = lock.writeLock();
+		try {
+			if (mappedData != null)
+				return 0;
+
+			long size = dataChannel.size();
+			long trimmed = (long) map.trim() * (long) Sector.SIZE;
+			if (trimmed >= size)
+				return 0;
+
+			dataChannel.truncate(trimmed);
+			return size - trimmed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
 	/**
 	 * Writes a file.
 	 * 
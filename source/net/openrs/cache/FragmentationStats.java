@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+/**
+ * Describes how fragmented the data file of a {@link FileStore} is. An extent
+ * is a run of consecutive sectors within a single file's chain, so a file
+ * laid out contiguously has exactly one extent.
+ */
+public final class FragmentationStats {
+
+	/**
+	 * The number of sectors in the data file, not including sector zero.
+	 */
+	private final int sectors;
+
+	/**
+	 * The number of sectors in use.
+	 */
+	private final int usedSectors;
+
+	/**
+	 * The number of files.
+	 */
+	private final int files;
+
+	/**
+	 * The number of files made up of more than one extent.
+	 */
+	private final int fragmentedFiles;
+
+	/**
+	 * The total number of extents across all files.
+	 */
+	private final int extents;
+
+	/**
+	 * Creates a new set of fragmentation statistics.
+	 *
+	 * @param sectors
+	 *            The number of sectors in the data file.
+	 * @param usedSectors
+	 *            The number of sectors in use.
+	 * @param files
+	 *            The number of files.
+	 * @param fragmentedFiles
+	 *            The number of files made up of more than one extent.
+	 * @param extents
+	 *            The total number of extents.
+	 */
+	public FragmentationStats(int sectors, int usedSectors, int files, int fragmentedFiles, int extents) {
+		this.sectors = sectors;
+		this.usedSectors = usedSectors;
+		this.files = files;
+		this.fragmentedFiles = fragmentedFiles;
+		this.extents = extents;
+	}
+
+	/**
+	 * Gets the number of sectors in the data file, not including sector zero.
+	 *
+	 * @return The number of sectors.
+	 */
+	public int getSectors() {
+		return sectors;
+	}
+
+	/**
+	 * Gets the number of sectors in use.
+	 *
+	 * @return The number of used sectors.
+	 */
+	public int getUsedSectors() {
+		return usedSectors;
+	}
+
+	/**
+	 * Gets the number of sectors which are not reachable from any index.
+	 *
+	 * @return The number of free sectors.
+	 */
+	public int getFreeSectors() {
+		return sectors - usedSectors;
+	}
+
+	/**
+	 * Gets the number of files.
+	 *
+	 * @return The number of files.
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * Gets the number of files made up of more than one extent.
+	 *
+	 * @return The number of fragmented files.
+	 */
+	public int getFragmentedFiles() {
+		return fragmentedFiles;
+	}
+
+	/**
+	 * Gets the total number of extents across all files.
+	 *
+	 * @return The number of extents.
+	 */
+	public int getExtents() {
+		return extents;
+	}
+
+	/**
+	 * Gets the share of the data file which is wasted on free sectors.
+	 *
+	 * @return The wasted share, between {@code 0} and {@code 1}.
+	 */
+	public double getWastedRatio() {
+		return sectors == 0 ? 0 : (double) getFreeSectors() / sectors;
+	}
+
+	/**
+	 * Gets the share of files which are fragmented.
+	 *
+	 * @return The fragmented share, between {@code 0} and {@code 1}.
+	 */
+	public double getFragmentedRatio() {
+		return files == 0 ? 0 : (double) fragmentedFiles / files;
+	}
+
+	@Override
+	public String toString() {
+		return "FragmentationStats [sectors=" + sectors + ", used=" + usedSectors + ", files=" + files
+				+ ", fragmented=" + fragmentedFiles + ", extents=" + extents + "]";
+	}
+
+}
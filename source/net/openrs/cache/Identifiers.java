@@ -18,12 +18,17 @@ package net.openrs.cache;
 
 import java.util.Arrays;
 
+import net.openrs.util.crypto.Djb2;
+
 /**
+ * An open addressing table from the {@link Djb2} hashes of file names to file
+ * ids, keyed by primitive ints so lookups allocate nothing.
+ * 
  * Created by Kyle Fricilone on Jun 11, 2017.
  */
 public class Identifiers {
 
-	int[] table;
+	final int[] table;
 
 	public int getFile(int identifier) {
 		/* Get mask to wrap around, and initial slot */
@@ -47,7 +52,73 @@ public class Identifiers {
 		}
 	}
 	
+	/**
+	 * Gets the id of the file with the specified name.
+	 * 
+	 * @param name
+	 *            The name.
+	 * @return The file id, or {@code -1} if there is no such file.
+	 */
+	public int getFile(String name) {
+		return getFile(Djb2.hash(name));
+	}
+
+	/**
+	 * Looks up the files named {@code prefix + x + "_" + y} for every region,
+	 * as map files are named. The names are hashed incrementally rather than
+	 * built as strings.
+	 * 
+	 * @param prefix
+	 *            The prefix, such as {@code "m"} or {@code "l"}.
+	 * @return The file ids, indexed by {@code x << 8 | y}, with {@code -1}
+	 *         for regions without a file.
+	 */
+	public int[] getRegionFiles(String prefix) {
+		int[] files = new int[65536];
+		int hash = Djb2.hash(prefix);
+		for (int x = 0; x < 256; x++) {
+			int xHash = appendDecimal(hash, x) * 31 + '_';
+			for (int y = 0; y < 256; y++)
+				files[x << 8 | y] = getFile(appendDecimal(xHash, y));
+		}
+		return files;
+	}
+
+	/**
+	 * Extends a {@link Djb2} hash with the decimal digits of a number.
+	 * 
+	 * @param hash
+	 *            The hash so far.
+	 * @param value
+	 *            The non-negative number.
+	 * @return The extended hash.
+	 */
+	private static int appendDecimal(int hash, int value) {
+		if (value >= 10)
+			hash = appendDecimal(hash, value / 10);
+		return hash * 31 + ('0' + value % 10);
+	}
+
+	/**
+	 * Creates a table where the position of each identifier is its file id.
+	 * 
+	 * @param identifiers
+	 *            The identifiers.
+	 */
 	public Identifiers(int[] identifiers) {
+		this(null, identifiers);
+	}
+
+	/**
+	 * Creates a table from the ids and identifiers of the files which exist.
+	 * 
+	 * @param ids
+	 *            The file ids, or {@code null} if the position of each
+	 *            identifier is its file id.
+	 * @param identifiers
+	 *            The identifiers.
+	 */
+	public Identifiers(int[] ids, int[] identifiers) {
 		/* Initial identifier sizes */
 		int length = identifiers.length;
 		int halfLength = identifiers.length >> 1;
@@ -76,7 +147,7 @@ public class Identifiers {
 			for (i = identifiers[id] & mask - 1; table[i + i + 1] != -1; i = i + 1 & mask - 1);
 
 			table[i + i] = identifiers[id];
-			table[i + i + 1] = id;
+			table[i + i + 1] = ids == null ? id : ids[id];
 		}
 
 	}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an {@link IntegrityScanner} pass over a {@link Cache}: how
+ * much was checked, how quickly, and every file which failed a check.
+ */
+public final class IntegrityReport {
+
+	/**
+	 * The checks a file can fail.
+	 */
+	public enum Kind {
+
+		/**
+		 * The file could not be read from the store.
+		 */
+		UNREADABLE("error"),
+
+		/**
+		 * The file is listed in its reference table but is not stored.
+		 */
+		MISSING("missing"),
+
+		/**
+		 * The CRC32 checksum does not match the reference table.
+		 */
+		CRC("corrupt"),
+
+		/**
+		 * The whirlpool digest does not match the reference table.
+		 */
+		WHIRLPOOL("whirlpool mismatch"),
+
+		/**
+		 * The version trailer does not match the reference table.
+		 */
+		VERSION("out of date"),
+
+		/**
+		 * The length in the container header does not match the file.
+		 */
+		LENGTH("bad length"),
+
+		/**
+		 * The container could not be decrypted or decompressed.
+		 */
+		DECODE("undecodable");
+
+		/**
+		 * The description of this kind of problem.
+		 */
+		private final String description;
+
+		Kind(String description) {
+			this.description = description;
+		}
+
+		/**
+		 * Gets the description of this kind of problem.
+		 * 
+		 * @return The description.
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+	}
+
+	/**
+	 * A file which failed a check.
+	 */
+	public static final class Problem {
+
+		/**
+		 * The type of the file.
+		 */
+		private final int type;
+
+		/**
+		 * The file id.
+		 */
+		private final int file;
+
+		/**
+		 * The check the file failed.
+		 */
+		private final Kind kind;
+
+		/**
+		 * Creates a new problem.
+		 * 
+		 * @param type
+		 *            The type of the file.
+		 * @param file
+		 *            The file id.
+		 * @param kind
+		 *            The check the file failed.
+		 */
+		public Problem(int type, int file, Kind kind) {
+			this.type = type;
+			this.file = file;
+			this.kind = kind;
+		}
+
+		/**
+		 * Gets the type of the file.
+		 * 
+		 * @return The type.
+		 */
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * Gets the file id.
+		 * 
+		 * @return The file id.
+		 */
+		public int getFile() {
+			return file;
+		}
+
+		/**
+		 * Gets the check the file failed.
+		 * 
+		 * @return The kind of problem.
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		@Override
+		public String toString() {
+			return type + ":" + file + " " + kind.getDescription();
+		}
+
+	}
+
+	/**
+	 * The number of files checked.
+	 */
+	private final int files;
+
+	/**
+	 * The number of files whose containers were decoded.
+	 */
+	private final int decoded;
+
+	/**
+	 * The number of bytes checked.
+	 */
+	private final long bytes;
+
+	/**
+	 * The time the scan took, in nanoseconds.
+	 */
+	private final long elapsed;
+
+	/**
+	 * The problems found, ordered by type and file.
+	 */
+	private final List<Problem> problems;
+
+	/**
+	 * Creates a new report.
+	 * 
+	 * @param files
+	 *            The number of files checked.
+	 * @param decoded
+	 *            The number of files whose containers were decoded.
+	 * @param bytes
+	 *            The number of bytes checked.
+	 * @param elapsed
+	 *            The time the scan took, in nanoseconds.
+	 * @param problems
+	 *            The problems found, ordered by type and file.
+	 */
+	public IntegrityReport(int files, int decoded, long bytes, long elapsed, List<Problem> problems) {
+		this.files = files;
+		this.decoded = decoded;
+		this.bytes = bytes;
+		this.elapsed = elapsed;
+		this.problems = Collections.unmodifiableList(problems);
+	}
+
+	/**
+	 * Gets the number of files checked.
+	 * 
+	 * @return The number of files.
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * Gets the number of files whose containers were decoded. Encrypted files
+	 * without known keys only have their header checked.
+	 * 
+	 * @return The number of decoded files.
+	 */
+	public int getDecoded() {
+		return decoded;
+	}
+
+	/**
+	 * Gets the number of bytes checked.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the time the scan took.
+	 * 
+	 * @return The time, in nanoseconds.
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Gets the rate the cache was checked at.
+	 * 
+	 * @return The throughput, in megabytes per second.
+	 */
+	public double getThroughput() {
+		return elapsed == 0 ? 0 : bytes / (elapsed / 1e9) / (1024 * 1024);
+	}
+
+	/**
+	 * Gets the problems found.
+	 * 
+	 * @return The problems, ordered by type and file.
+	 */
+	public List<Problem> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * Checks if every file passed every check.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isClean() {
+		return problems.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d files (%d decoded), %d bytes in %d ms, %.1f MB/s, %d problems", files, decoded,
+				bytes, elapsed / 1000000, getThroughput(), problems.size());
+	}
+
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+import net.openrs.cache.IntegrityReport.Kind;
+import net.openrs.cache.IntegrityReport.Problem;
+import net.openrs.cache.type.CacheIndex;
+import net.openrs.cache.util.XTEAManager;
+import net.openrs.util.ByteBufferPool;
+import net.openrs.util.crypto.Whirlpool;
+
+/**
+ * Checks every file listed in the reference tables of a {@link Cache} against
+ * its entry, splitting the files across a {@link ForkJoinPool}. Each file has
+ * its CRC32 checksum, whirlpool digest (if the table has them), version and
+ * container header checked, and is then decrypted and decompressed. Encrypted
+ * landscape files whose keys are not known only have their header checked.
+ */
+public final class IntegrityScanner {
+
+	/**
+	 * The number of files below which a range is checked on one thread.
+	 */
+	private static final int THRESHOLD = 64;
+
+	/**
+	 * The tallies of a range of files.
+	 */
+	private static final class Result {
+
+		/**
+		 * The number of files checked.
+		 */
+		private int files;
+
+		/**
+		 * The number of files decoded.
+		 */
+		private int decoded;
+
+		/**
+		 * The number of bytes checked.
+		 */
+		private long bytes;
+
+		/**
+		 * The problems found, in order.
+		 */
+		private final List<Problem> problems = new ArrayList<>();
+
+		/**
+		 * Adds the tallies of the range following this one.
+		 * 
+		 * @param other
+		 *            The tallies of the following range.
+		 */
+		private void merge(Result other) {
+			files += other.files;
+			decoded += other.decoded;
+			bytes += other.bytes;
+			problems.addAll(other.problems);
+		}
+
+	}
+
+	/**
+	 * Checks a range of files, splitting it in half until it is small enough.
+	 */
+	private final class Scan extends RecursiveTask<Result> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The types of all the files.
+		 */
+		private final int[] types;
+
+		/**
+		 * The ids of all the files.
+		 */
+		private final int[] files;
+
+		/**
+		 * The first file in the range.
+		 */
+		private final int start;
+
+		/**
+		 * The end of the range, exclusive.
+		 */
+		private final int end;
+
+		/**
+		 * Creates a new scan.
+		 * 
+		 * @param types
+		 *            The types of all the files.
+		 * @param files
+		 *            The ids of all the files.
+		 * @param start
+		 *            The first file in the range.
+		 * @param end
+		 *            The end of the range, exclusive.
+		 */
+		public Scan(int[] types, int[] files, int start, int end) {
+			this.types = types;
+			this.files = files;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Result compute() {
+			if (end - start <= THRESHOLD) {
+				Result result = new Result();
+				CRC32 crc = new CRC32();
+				for (int i = start; i < end; i++)
+					check(types[i], files[i], crc, result);
+				return result;
+			}
+
+			int middle = (start + end) >>> 1;
+			Scan left = new Scan(types, files, start, middle);
+			left.fork();
+			Result right = new Scan(types, files, middle, end).compute();
+
+			Result result = left.join();
+			result.merge(right);
+			return result;
+		}
+
+	}
+
+	/**
+	 * The cache to check.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The pool the files are read into.
+	 */
+	private final ByteBufferPool buffers = new ByteBufferPool();
+
+	/**
+	 * The region of each landscape file, or {@code -1}, indexed by file id.
+	 */
+	private int[] regions;
+
+	/**
+	 * Creates a new scanner.
+	 * 
+	 * @param cache
+	 *            The cache to check.
+	 */
+	public IntegrityScanner(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Checks every file on the common {@link ForkJoinPool}.
+	 * 
+	 * @return The report.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public IntegrityReport scan() throws IOException {
+		return scan(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Checks every file.
+	 * 
+	 * @param pool
+	 *            The pool to check the files on.
+	 * @return The report.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public synchronized IntegrityReport scan(ForkJoinPool pool) throws IOException {
+		long start = System.nanoTime();
+
+		/* list every file in every reference table */
+		int count = 0;
+		for (int type = 0; type < cache.getTypeCount(); type++) {
+			ReferenceTable table = cache.getReferenceTable(type);
+			if (table != null)
+				count += table.size();
+		}
+
+		int[] types = new int[count];
+		int[] files = new int[count];
+		count = 0;
+		for (int type = 0; type < cache.getTypeCount(); type++) {
+			ReferenceTable table = cache.getReferenceTable(type);
+			if (table == null)
+				continue;
+
+			for (int file = 0; file < table.capacity(); file++) {
+				if (table.getEntry(file) != null) {
+					types[count] = type;
+					files[count++] = file;
+				}
+			}
+		}
+
+		/* find the region of each landscape file so it can be decrypted */
+		int landscapes = CacheIndex.LANDSCAPES.getID();
+		ReferenceTable table = landscapes < cache.getTypeCount() ? cache.getReferenceTable(landscapes) : null;
+		regions = new int[table == null ? 0 : table.capacity()];
+		Arrays.fill(regions, -1);
+		if (table != null) {
+			int[] ids = cache.getRegionFileIds(landscapes, "l");
+			for (int region = 0; region < ids.length; region++) {
+				if (ids[region] != -1 && ids[region] < regions.length)
+					regions[ids[region]] = region;
+			}
+		}
+
+		Result result = pool.invoke(new Scan(types, files, 0, count));
+		return new IntegrityReport(result.files, result.decoded, result.bytes, System.nanoTime() - start,
+				result.problems);
+	}
+
+	/**
+	 * Checks a single file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The file id.
+	 * @param crc
+	 *            The checksum to reuse.
+	 * @param result
+	 *            The tallies to add the file to.
+	 */
+	private void check(int type, int file, CRC32 crc, Result result) {
+		ReferenceTable table = cache.getReferenceTable(type);
+		ReferenceTable.Entry entry = table.getEntry(file);
+		result.files++;
+
+		ByteBuffer buffer;
+		try {
+			buffer = cache.getStore().read(type, file, buffers);
+		} catch (IOException ex) {
+			result.problems.add(new Problem(type, file, Kind.UNREADABLE));
+			return;
+		}
+
+		try {
+			if (buffer.limit() <= 2) {
+				result.problems.add(new Problem(type, file, Kind.MISSING));
+				return;
+			}
+			result.bytes += buffer.limit();
+
+			/* last two bytes are the version and shouldn't be included */
+			int version = buffer.getShort(buffer.limit() - 2) & 0xFFFF;
+			buffer.limit(buffer.limit() - 2);
+
+			crc.reset();
+			crc.update(buffer.duplicate());
+			if ((int) crc.getValue() != entry.getCrc())
+				result.problems.add(new Problem(type, file, Kind.CRC));
+
+			if ((table.getFlags() & ReferenceTable.FLAG_WHIRLPOOL) != 0
+					&& !Arrays.equals(Whirlpool.whirlpool(buffer.duplicate()), entry.getWhirlpool()))
+				result.problems.add(new Problem(type, file, Kind.WHIRLPOOL));
+
+			if (version != entry.getVersion())
+				result.problems.add(new Problem(type, file, Kind.VERSION));
+
+			/* the compression type and length are never encrypted */
+			int header = buffer.get(0) == Container.COMPRESSION_NONE ? 5 : 9;
+			if (buffer.limit() < header || buffer.getInt(1) != buffer.limit() - header) {
+				result.problems.add(new Problem(type, file, Kind.LENGTH));
+				return;
+			}
+
+			int[] keys = getKeys(type, file);
+			if (keys == null)
+				return;
+
+			try {
+				Container.decode(buffer.duplicate(), keys);
+				result.decoded++;
+			} catch (IOException | RuntimeException ex) {
+				result.problems.add(new Problem(type, file, Kind.DECODE));
+			}
+		} finally {
+			buffers.release(buffer);
+		}
+	}
+
+	/**
+	 * Gets the keys a file is encrypted with.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The file id.
+	 * @return The keys, or {@code null} if the file is encrypted with keys
+	 *         which are not known.
+	 */
+	private int[] getKeys(int type, int file) {
+		if (type != CacheIndex.LANDSCAPES.getID() || file >= regions.length || regions[file] == -1)
+			return XTEAManager.NULL_KEYS;
+
+		int[] keys = XTEAManager.lookupMap(regions[file]);
+		return keys == XTEAManager.NULL_KEYS ? null : keys;
+	}
+
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.openrs.util.FileChannelUtils;
+
+/**
+ * A write-ahead {@link Journal} which makes {@link WriteBatch}es applied to a
+ * {@link FileStore} durable and atomic.
+ * <p />
+ * A commit first appends the batch to the journal file and forces it to disk.
+ * Only then is the batch applied to the store, which is forced in turn before
+ * the journal is emptied again. If the process dies part way through, the
+ * batch is still in the journal and is replayed the next time the store is
+ * opened. A record which was only partly written fails its checksum and is
+ * discarded, as none of it can have reached the store yet. A complete record
+ * which cannot be applied is moved aside to a {@code .bad} file next to the
+ * journal so the store can still be opened.
+ * <p />
+ * Commits from several threads are grouped: while one thread flushes a group,
+ * any batches committed in the meantime gather in the next group, which is
+ * then written and forced as a single record.
+ */
+final class Journal implements Closeable {
+
+	/**
+	 * The logger for this class.
+	 */
+	private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+	/**
+	 * The magic number at the start of a journal record.
+	 */
+	private static final int MAGIC = 0x4A4E4C31;
+
+	/**
+	 * The size of the record header: the magic number and the entry count.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The size of an entry header: the type, the id and the length.
+	 */
+	private static final int ENTRY_HEADER_SIZE = 9;
+
+	/**
+	 * A group of batches which is flushed as a single record.
+	 */
+	private static final class Group {
+
+		/**
+		 * The batches in this group.
+		 */
+		private final List<WriteBatch> batches = new ArrayList<>();
+
+		/**
+		 * A flag indicating if this group has been flushed.
+		 */
+		private boolean flushed;
+
+		/**
+		 * The reason this group could not be flushed, if any.
+		 */
+		private Exception failure;
+
+	}
+
+	/**
+	 * Opens the journal stored in the specified file, creating it if it does
+	 * not exist, and replays any record left behind by a crash.
+	 * 
+	 * @param file
+	 *            The journal file.
+	 * @param store
+	 *            The file store the journal protects.
+	 * @return The journal.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	public static Journal open(File file, FileStore store) throws IOException {
+		Journal journal = new Journal(new RandomAccessFile(file, "rw").getChannel(), store);
+		journal.replay(file);
+		return journal;
+	}
+
+	/**
+	 * The channel of the journal file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The file store the journal protects.
+	 */
+	private final FileStore store;
+
+	/**
+	 * The lock held by the thread flushing a group.
+	 */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	/**
+	 * The group new batches are added to, or {@code null} if no batches are
+	 * waiting.
+	 */
+	private Group open;
+
+	/**
+	 * A flag indicating if a record could not be applied, in which case it
+	 * must stay in the journal until the store is reopened.
+	 */
+	private volatile boolean broken;
+
+	/**
+	 * Creates a new journal.
+	 * 
+	 * @param channel
+	 *            The channel of the journal file.
+	 * @param store
+	 *            The file store the journal protects.
+	 */
+	private Journal(FileChannel channel, FileStore store) {
+		this.channel = channel;
+		this.store = store;
+	}
+
+	/**
+	 * Commits a batch, returning once it is durable.
+	 * 
+	 * @param batch
+	 *            The batch.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void commit(WriteBatch batch) throws IOException {
+		Group group;
+		synchronized (this) {
+			if (open == null)
+				open = new Group();
+
+			group = open;
+			group.batches.add(batch);
+		}
+
+		flushLock.lock();
+		try {
+			if (!group.flushed) {
+				/* we're the leader, close the group so later commits start a new one */
+				synchronized (this) {
+					if (open == group)
+						open = null;
+				}
+
+				try {
+					flush(group.batches);
+				} catch (IOException | RuntimeException ex) {
+					group.failure = ex;
+				}
+				group.flushed = true;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+
+		if (group.failure != null)
+			throw new IOException("Journal commit failed.", group.failure);
+	}
+
+	/**
+	 * Writes a group of batches to the journal as a single record, applies
+	 * them to the store and empties the journal again.
+	 * 
+	 * @param batches
+	 *            The batches.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void flush(List<WriteBatch> batches) throws IOException {
+		if (broken)
+			throw new IOException("Journal holds a record which could not be applied, reopen the store.");
+
+		int count = 0, size = HEADER_SIZE + 4;
+		for (WriteBatch batch : batches) {
+			for (WriteBatch.Entry entry : batch.getEntries()) {
+				count++;
+				size += ENTRY_HEADER_SIZE + entry.getData().remaining();
+			}
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.putInt(MAGIC).putInt(count);
+		for (WriteBatch batch : batches) {
+			for (WriteBatch.Entry entry : batch.getEntries()) {
+				ByteBuffer data = entry.getData();
+				record.put((byte) entry.getType()).putInt(entry.getId()).putInt(data.remaining()).put(data);
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+
+		/* the record must be on disk before the store is touched */
+		channel.write(record, 0);
+		channel.force(false);
+
+		try {
+			store.apply(batches, true);
+		} catch (IOException | RuntimeException ex) {
+			broken = true;
+			throw ex;
+		}
+
+		channel.truncate(0);
+	}
+
+	/**
+	 * Replays the record in the journal, if there is a complete one, and
+	 * empties the journal. A record which cannot be applied is copied to a
+	 * {@code .bad} file beside the journal instead of failing the open.
+	 * 
+	 * @param file
+	 *            The journal file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void replay(File file) throws IOException {
+		long length = channel.size();
+		if (length == 0)
+			return;
+
+		if (length >= HEADER_SIZE + 4 && length <= Integer.MAX_VALUE) {
+			ByteBuffer record = ByteBuffer.allocate((int) length);
+			FileChannelUtils.readFully(channel, record, 0);
+			record.flip();
+
+			WriteBatch batch = decode(record.duplicate());
+			if (batch != null) {
+				try {
+					store.apply(Collections.singletonList(batch), true);
+				} catch (IOException | RuntimeException ex) {
+					File bad = new File(file.getPath() + ".bad");
+					try (FileOutputStream out = new FileOutputStream(bad)) {
+						while (record.hasRemaining())
+							out.getChannel().write(record);
+						out.getFD().sync();
+					}
+					logger.log(Level.WARNING, "Could not replay journal record, moved it to " + bad, ex);
+				}
+			}
+		}
+
+		channel.truncate(0);
+		channel.force(false);
+	}
+
+	/**
+	 * Decodes a journal record. Anything after the record is ignored, as an
+	 * emptied journal may not have been shrunk on disk before the next record
+	 * was written over it.
+	 * 
+	 * @param record
+	 *            The buffer holding the record.
+	 * @return The batch, or {@code null} if the record is incomplete.
+	 */
+	private static WriteBatch decode(ByteBuffer record) {
+		if (record.getInt() != MAGIC)
+			return null;
+
+		int count = record.getInt();
+		if (count < 0)
+			return null;
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < count; i++) {
+			if (record.remaining() < ENTRY_HEADER_SIZE)
+				return null;
+
+			int type = record.get() & 0xFF;
+			int id = record.getInt();
+			int length = record.getInt();
+			if (length < 0 || record.remaining() < length)
+				return null;
+
+			ByteBuffer data = record.slice();
+			data.limit(length);
+			batch.add(type, id, data);
+			record.position(record.position() + length);
+		}
+
+		if (record.remaining() < 4)
+			return null;
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		if (record.getInt() != (int) crc.getValue())
+			return null;
+
+		return batch;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
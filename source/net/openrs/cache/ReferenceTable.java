@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -395,15 +396,11 @@ public class ReferenceTable {
 		}
 
 		/* read the identifiers if present */
-		int[] identifiersArray = new int[size];
 		if ((table.flags & FLAG_IDENTIFIERS) != 0) {
 			for (int id : ids) {
-				int identifier = buffer.getInt();
-				identifiersArray[id] = identifier;
-				table.entries.get(id).identifier = identifier;
+				table.entries.get(id).identifier = buffer.getInt();
 			}
 		}
-		table.identifiers = new Identifiers(identifiersArray);
 
 		/* read the CRC32 checksums */
 		for (int id : ids) {
@@ -542,7 +539,8 @@ public class ReferenceTable {
 	private final SortedMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
 
 	/**
-	 * Identifier table
+	 * The name index of the entries, built on first use and dropped whenever
+	 * an entry is put or removed.
 	 */
 	private Identifiers identifiers;
 	
@@ -666,6 +664,17 @@ public class ReferenceTable {
 		}
 	}
 
+	/**
+	 * Computes the changes from this table to a newer revision of it.
+	 * 
+	 * @param newer
+	 *            The newer table.
+	 * @return The {@link Changeset}.
+	 */
+	public Changeset diff(ReferenceTable newer) {
+		return Changeset.compute(this, newer);
+	}
+
 	/**
 	 * Gets the entry with the specified id, or {@code null} if it does not
 	 * exist.
@@ -745,6 +754,7 @@ public class ReferenceTable {
 	 */
 	public void putEntry(int id, Entry entry) {
 		entries.put(id, entry);
+		identifiers = null;
 	}
 
 	/**
@@ -755,6 +765,7 @@ public class ReferenceTable {
 	 */
 	public void removeEntry(int id) {
 		entries.remove(id);
+		identifiers = null;
 	}
 
 	/**
@@ -813,11 +824,27 @@ public class ReferenceTable {
 	}
 
 	/**
-	 * Gets the identifiers table
+	 * Gets the name index of this table, which maps the hashed names of the
+	 * entries to their ids. It only holds entries which exist, and is empty
+	 * if the table has no identifiers.
 	 * 
-	 * @return The table
+	 * @return The name index.
 	 */
 	public Identifiers getIdentifiers() {
+		if (identifiers == null) {
+			int[] ids = new int[0], hashes = new int[0];
+			if ((flags & FLAG_IDENTIFIERS) != 0) {
+				ids = new int[entries.size()];
+				hashes = new int[ids.length];
+
+				int index = 0;
+				for (Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+					ids[index] = entry.getKey();
+					hashes[index++] = entry.getValue().identifier;
+				}
+			}
+			identifiers = new Identifiers(ids, hashes);
+		}
 		return identifiers;
 	}
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.util.BitSet;
+
+/**
+ * A {@link SectorMap} records which sectors of the data file in a
+ * {@link FileStore} are in use. Any sector that is not reachable from an
+ * {@link Index} is free and may be handed out again by {@link #allocate}.
+ * <p />
+ * Sector {@code 0} is never allocated, as a next sector of zero marks the end
+ * of a chain.
+ */
+public final class SectorMap {
+
+	/**
+	 * The sectors which are in use.
+	 */
+	private final BitSet used = new BitSet();
+
+	/**
+	 * The number of sectors in the data file, including sector zero.
+	 */
+	private int size;
+
+	/**
+	 * Creates a new sector map where every sector is free.
+	 *
+	 * @param size
+	 *            The number of sectors in the data file.
+	 */
+	public SectorMap(int size) {
+		this.size = Math.max(size, 1);
+		used.set(0);
+	}
+
+	/**
+	 * Allocates a number of sectors, preferring a contiguous run. The run
+	 * starting at {@code hint} is tried first, then the first run within the
+	 * data file which is large enough. Failing that, the free sectors are
+	 * filled in order and the rest is appended to the end of the data file.
+	 *
+	 * @param count
+	 *            The number of sectors to allocate.
+	 * @param hint
+	 *            The preferred first sector, or {@code 0} for no preference.
+	 * @return The allocated sectors, in chain order.
+	 */
+	public int[] allocate(int count, int hint) {
+		int start = -1;
+		if (hint > 0 && isFree(hint, count)) {
+			start = hint;
+		} else {
+			int run = findRun(count);
+			if (run < size)
+				start = run;
+		}
+
+		int[] sectors = new int[count];
+		for (int i = 0, sector = start == -1 ? 1 : start; i < count; i++) {
+			if (start == -1)
+				sector = used.nextClearBit(sector);
+
+			sectors[i] = sector;
+			mark(sector++);
+		}
+		return sectors;
+	}
+
+	/**
+	 * Finds the first run of free sectors within the data file which is large
+	 * enough to hold the specified number of sectors.
+	 *
+	 * @param count
+	 *            The number of sectors.
+	 * @return The first sector of the run, or the number of sectors in the
+	 *         data file if there is no such run.
+	 */
+	public int findRun(int count) {
+		for (int sector = used.nextClearBit(1); sector < size; sector = used.nextClearBit(sector)) {
+			int end = used.nextSetBit(sector);
+			if (end == -1 || end > size)
+				end = size;
+
+			if (end - sector >= count)
+				return sector;
+
+			sector = end;
+		}
+		return size;
+	}
+
+	/**
+	 * Drops the free sectors at the end of the data file from this map.
+	 *
+	 * @return The new number of sectors in the data file.
+	 */
+	public int trim() {
+		size = used.length();
+		return size;
+	}
+
+	/**
+	 * Frees a sector so it can be allocated again.
+	 *
+	 * @param sector
+	 *            The sector.
+	 */
+	public void free(int sector) {
+		if (sector > 0)
+			used.clear(sector);
+	}
+
+	/**
+	 * Marks a sector as being in use.
+	 *
+	 * @param sector
+	 *            The sector.
+	 */
+	public void mark(int sector) {
+		used.set(sector);
+		if (sector >= size)
+			size = sector + 1;
+	}
+
+	/**
+	 * Checks if a sector is in use.
+	 *
+	 * @param sector
+	 *            The sector.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isUsed(int sector) {
+		return used.get(sector);
+	}
+
+	/**
+	 * Checks if a run of sectors is free. Sectors past the end of the data
+	 * file are always free.
+	 *
+	 * @param start
+	 *            The first sector of the run.
+	 * @param count
+	 *            The length of the run.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isFree(int start, int count) {
+		int next = used.nextSetBit(start);
+		return next == -1 || next >= start + count;
+	}
+
+	/**
+	 * Gets the number of sectors in the data file, including sector zero.
+	 *
+	 * @return The number of sectors.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of sectors which are in use, not including sector zero.
+	 *
+	 * @return The number of used sectors.
+	 */
+	public int getUsedSectors() {
+		return used.cardinality() - 1;
+	}
+
+	/**
+	 * Gets the number of free sectors within the data file.
+	 *
+	 * @return The number of free sectors.
+	 */
+	public int getFreeSectors() {
+		return size - 1 - getUsedSectors();
+	}
+
+}
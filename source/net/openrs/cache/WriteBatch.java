@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link WriteBatch} is a group of file writes which a {@link FileStore}
+ * applies together. If the store was opened with
+ * {@link FileStore.Option#JOURNALED}, the whole batch becomes durable
+ * atomically: after a crash, either every write in the batch or none of them
+ * is visible.
+ * <p />
+ * Writing the same file twice in one batch keeps only the last write.
+ */
+public final class WriteBatch {
+
+	/**
+	 * A single write in a batch.
+	 */
+	static final class Entry {
+
+		/**
+		 * The type of the file.
+		 */
+		private final int type;
+
+		/**
+		 * The id of the file.
+		 */
+		private final int id;
+
+		/**
+		 * The contents of the file.
+		 */
+		private final ByteBuffer data;
+
+		/**
+		 * Creates a new entry.
+		 * 
+		 * @param type
+		 *            The type of the file.
+		 * @param id
+		 *            The id of the file.
+		 * @param data
+		 *            The contents of the file.
+		 */
+		Entry(int type, int id, ByteBuffer data) {
+			this.type = type;
+			this.id = id;
+			this.data = data;
+		}
+
+		/**
+		 * Gets the type of the file.
+		 * 
+		 * @return The type.
+		 */
+		int getType() {
+			return type;
+		}
+
+		/**
+		 * Gets the id of the file.
+		 * 
+		 * @return The id.
+		 */
+		int getId() {
+			return id;
+		}
+
+		/**
+		 * Gets a view of the contents of the file.
+		 * 
+		 * @return The contents.
+		 */
+		ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+	}
+
+	/**
+	 * The writes in this batch, keyed by type and id, in the order they were
+	 * first added.
+	 */
+	private final Map<Long, Entry> entries = new LinkedHashMap<>();
+
+	/**
+	 * Adds a write to this batch. The remaining bytes of the buffer are copied,
+	 * and its position is left untouched.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param data
+	 *            A {@link ByteBuffer} containing the contents of the file.
+	 */
+	public void add(int type, int id, ByteBuffer data) {
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data.duplicate());
+		copy.flip();
+
+		entries.put(key(type, id), new Entry(type, id, copy));
+	}
+
+	/**
+	 * Gets a copy of the contents a file is written with in this batch.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The contents, or {@code null} if the batch does not write the
+	 *         file.
+	 */
+	ByteBuffer get(int type, int id) {
+		Entry entry = entries.get(key(type, id));
+		if (entry == null)
+			return null;
+
+		ByteBuffer copy = ByteBuffer.allocate(entry.data.remaining());
+		copy.put(entry.getData());
+		return (ByteBuffer) copy.flip();
+	}
+
+	/**
+	 * Gets the number of files written by this batch.
+	 * 
+	 * @return The number of files.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Checks if this batch writes no files.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Gets the writes in this batch.
+	 * 
+	 * @return The writes.
+	 */
+	Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	/**
+	 * Gets the key of a file in the map of writes.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The key.
+	 */
+	private static Long key(int type, int id) {
+		return (long) type << 32 | id & 0xFFFFFFFFL;
+	}
+
+}
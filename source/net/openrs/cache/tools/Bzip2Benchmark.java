@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Constants;
+import net.openrs.cache.Container;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.util.Bzip2Decompressor;
+
+/**
+ * Checks {@link Bzip2Decompressor} against {@link CBZip2InputStream} on every
+ * BZIP2 container in the cache, then compares their throughput.
+ * <p />
+ * Usage: {@code Bzip2Benchmark [rounds]}
+ */
+public final class Bzip2Benchmark {
+
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		List<byte[]> files = new ArrayList<>();
+		List<byte[]> uncompressed = new ArrayList<>();
+		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			for (int type = 0; type < cache.getTypeCount(); type++) {
+				for (int file = 0; file < cache.getFileCount(type); file++) {
+					ByteBuffer buf;
+					try {
+						buf = cache.getStore().read(type, file);
+					} catch (IOException ex) {
+						continue;
+					}
+
+					/* skip encrypted containers, whose payload we can't read */
+					if (buf.remaining() < 9 || buf.get(0) != Container.COMPRESSION_BZIP2)
+						continue;
+
+					int length = buf.getInt(1);
+					if (length < 0 || 9 + length > buf.remaining())
+						continue;
+
+					byte[] data = new byte[length];
+					buf.position(9);
+					buf.get(data);
+
+					byte[] expected;
+					try {
+						expected = streamBunzip2(data);
+					} catch (IOException | RuntimeException ex) {
+						continue;
+					}
+
+					byte[] actual = new byte[expected.length];
+					Bzip2Decompressor.decompress(ByteBuffer.wrap(data), actual);
+					if (!Arrays.equals(actual, expected))
+						throw new IOException("Mismatch in " + type + ":" + file + ".");
+
+					files.add(data);
+					uncompressed.add(actual);
+				}
+			}
+		}
+
+		long total = 0;
+		for (byte[] file : uncompressed)
+			total += file.length;
+		System.out.println(files.size() + " BZIP2 files match, " + total + " bytes uncompressed");
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (byte[] file : files)
+				streamBunzip2(file);
+			report("stream", start, total);
+
+			start = System.nanoTime();
+			for (int i = 0; i < files.size(); i++)
+				Bzip2Decompressor.decompress(ByteBuffer.wrap(files.get(i)), new byte[uncompressed.get(i).length]);
+			report("block", start, total);
+		}
+	}
+
+	/**
+	 * Prints the throughput of a pass.
+	 * 
+	 * @param name
+	 *            The name of the pass.
+	 * @param start
+	 *            The time the pass started, in nanoseconds.
+	 * @param bytes
+	 *            The number of uncompressed bytes produced.
+	 */
+	private static void report(String name, long start, long bytes) {
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%-6s %7d ms %8.1f MB/s%n", name, elapsed / 1000000, bytes / (elapsed / 1e9) / (1024 * 1024));
+	}
+
+	/**
+	 * Uncompresses a file with a {@link CBZip2InputStream}, as the cache did
+	 * before {@link Bzip2Decompressor}.
+	 * 
+	 * @param bytes
+	 *            The compressed bytes without the header.
+	 * @return The uncompressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static byte[] streamBunzip2(byte[] bytes) throws IOException {
+		byte[] bzip2 = new byte[bytes.length + 2];
+		bzip2[0] = 'h';
+		bzip2[1] = '1';
+		System.arraycopy(bytes, 0, bzip2, 2, bytes.length);
+
+		try (InputStream is = new CBZip2InputStream(new ByteArrayInputStream(bzip2))) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = is.read(buf, 0, buf.length)) != -1)
+				os.write(buf, 0, len);
+			return os.toByteArray();
+		}
+	}
+
+}
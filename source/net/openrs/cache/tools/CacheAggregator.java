@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 import net.openrs.cache.Cache;
+import net.openrs.cache.Changeset;
 import net.openrs.cache.Constants;
 import net.openrs.cache.Container;
 import net.openrs.cache.FileStore;
@@ -17,18 +18,25 @@ public final class CacheAggregator {
 		try (Cache otherCache = new Cache(FileStore.open(Constants.CACHEO_PATH));
 				Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
 			for (int type = 0; type < cache.getFileCount(255); type++) {
+				if (type >= otherCache.getTypeCount())
+					continue;
+
 				ReferenceTable otherTable = otherCache.getReferenceTable(type);
 				ReferenceTable table = cache.getReferenceTable(type);
+				if (table == null || otherTable == null)
+					continue;
+
+				/* only files which are the same in both revisions can be taken from the other cache */
+				Changeset changes = otherTable.diff(table);
+				System.out.println(type + ": " + changes);
+
 				for (int file = 0; file < table.capacity(); file++) {
 					Entry entry = table.getEntry(file);
-					if (entry == null)
+					if (entry == null || changes.isModified(file))
 						continue;
 
 					if (isRepackingRequired(cache, entry, type, file)) {
-						Entry otherEntry = otherTable.getEntry(file);
-						if (entry.getVersion() == otherEntry.getVersion() && entry.getCrc() == otherEntry.getCrc()) {
-							cache.getStore().write(type, file, otherCache.getStore().read(type, file));
-						}
+						cache.getStore().write(type, file, otherCache.getStore().read(type, file));
 					}
 				}
 			}
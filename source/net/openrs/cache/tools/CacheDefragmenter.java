@@ -4,14 +4,23 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import net.openrs.cache.Cache;
+import net.openrs.cache.Compactor;
 import net.openrs.cache.Constants;
 import net.openrs.cache.Container;
 import net.openrs.cache.FileStore;
 import net.openrs.cache.ReferenceTable;
+import net.openrs.util.ByteBufferPool;
 
 public final class CacheDefragmenter {
 
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("in-place")) {
+			compact(args.length > 1 ? Long.parseLong(args[1]) : 0);
+			return;
+		}
+
+		ByteBufferPool pool = new ByteBufferPool();
+
 		try (Cache in = new Cache(FileStore.open(Constants.CACHE_PATH));
 				Cache out = new Cache(FileStore.create(Constants.CACHETMP_PATH, in.getTypeCount()))) {
 			for (int type = 0; type < in.getTypeCount(); type++) {
@@ -27,10 +36,28 @@ public final class CacheDefragmenter {
 						continue;
 					}
 
-					out.getStore().write(type, file, in.getStore().read(type, file));
+					ByteBuffer data = in.getStore().read(type, file, pool);
+					try {
+						out.getStore().write(type, file, data);
+					} finally {
+						pool.release(data);
+					}
 				}
 			}
 		}
 	}
 
+	private static void compact(long bytesPerSecond) throws IOException {
+		try (FileStore store = FileStore.open(Constants.CACHE_PATH)) {
+			System.out.println("Before: " + store.getFragmentationStats());
+
+			Compactor compactor = new Compactor(store);
+			compactor.setThrottle(bytesPerSecond);
+			compactor.run();
+
+			System.out.println("Moved " + compactor.getMoved() + " files, " + compactor.getBytesMoved() + " bytes");
+			System.out.println("After: " + store.getFragmentationStats());
+		}
+	}
+
 }
\ No newline at end of file
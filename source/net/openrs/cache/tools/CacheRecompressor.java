@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Constants;
+import net.openrs.cache.Container;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.ReferenceTable;
+import net.openrs.cache.type.CacheIndex;
+import net.openrs.cache.util.CompressionCodec;
+import net.openrs.cache.util.CompressionCodecs;
+
+/**
+ * Recompresses every file in the cache with whichever registered
+ * {@link CompressionCodec} and level gives the smallest container that still
+ * decodes to the same data. The candidates for a file are tried in parallel.
+ * <p />
+ * Files which can't be decoded without their XTEA keys are left alone, as
+ * are uncompressed landscape files, which may be encrypted.
+ * <p />
+ * Usage: {@code CacheRecompressor [write]}. Without {@code write}, the
+ * savings are only reported.
+ */
+public final class CacheRecompressor {
+
+	/**
+	 * The number of files recompressed before they are written in one batch.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * The best encoding found for a file.
+	 */
+	private static final class Candidate {
+
+		/**
+		 * The container, set up with the codec and level.
+		 */
+		private final Container container;
+
+		/**
+		 * The size of the encoded container.
+		 */
+		private final int size;
+
+		/**
+		 * Creates a new candidate.
+		 * 
+		 * @param container
+		 *            The container.
+		 * @param size
+		 *            The size of the encoded container.
+		 */
+		public Candidate(Container container, int size) {
+			this.container = container;
+			this.size = size;
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean write = args.length > 0 && args[0].equals("write");
+
+		long before = 0, after = 0;
+		int files = 0, changed = 0, skipped = 0;
+
+		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			for (int type = 0; type < cache.getTypeCount(); type++) {
+				ReferenceTable table = cache.getReferenceTable(type);
+				if (table == null)
+					continue;
+
+				int t = type;
+				for (int start = 0; start < table.capacity(); start += BATCH_SIZE) {
+					int[] ids = IntStream.range(start, Math.min(start + BATCH_SIZE, table.capacity()))
+							.filter(file -> table.getEntry(file) != null).toArray();
+
+					int[] sizes = new int[ids.length];
+					Candidate[] best = IntStream.range(0, ids.length).parallel().mapToObj(i -> {
+						try {
+							ByteBuffer buf = cache.getStore().read(t, ids[i]);
+							sizes[i] = buf.remaining();
+							return recompress(t, buf, table.getEntry(ids[i]).getVersion());
+						} catch (IOException ex) {
+							return null;
+						}
+					}).toArray(Candidate[]::new);
+
+					if (write)
+						cache.beginBatch();
+
+					for (int i = 0; i < ids.length; i++) {
+						files++;
+						before += sizes[i];
+
+						if (best[i] == null) {
+							skipped++;
+							after += sizes[i];
+						} else if (best[i].size < sizes[i]) {
+							changed++;
+							after += best[i].size;
+							if (write)
+								cache.write(type, ids[i], best[i].container);
+						} else {
+							after += sizes[i];
+						}
+					}
+
+					if (write)
+						cache.commit();
+				}
+			}
+		}
+
+		System.out.println(files + " files, " + changed + " smaller, " + skipped + " skipped");
+		System.out.println("Before: " + before + " bytes, after: " + after + " bytes (" + (before - after)
+				+ " saved" + (write ? "" : ", not written") + ")");
+	}
+
+	/**
+	 * Finds the smallest encoding of a file which decodes to the same data.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param buf
+	 *            The encoded file.
+	 * @param version
+	 *            The version of the file in its reference table.
+	 * @return The best candidate, or {@code null} if the file can't be
+	 *         decoded.
+	 */
+	private static Candidate recompress(int type, ByteBuffer buf, int version) {
+		Container original;
+		try {
+			original = Container.decode(buf);
+		} catch (IOException | RuntimeException ex) {
+			return null;
+		}
+
+		if (original.getType() == Container.COMPRESSION_NONE && type == CacheIndex.LANDSCAPES.getID())
+			return null;
+
+		ByteBuffer data = original.getData();
+
+		List<int[]> candidates = new ArrayList<>();
+		for (CompressionCodec codec : CompressionCodecs.getCodecs()) {
+			for (int level : codec.getLevels())
+				candidates.add(new int[] { codec.getType(), level });
+		}
+
+		return candidates.parallelStream().map(candidate -> {
+			Container container = new Container(candidate[0], data, version);
+			container.setLevel(candidate[1]);
+
+			try {
+				ByteBuffer encoded = container.encode();
+				int size = encoded.remaining();
+
+				/* only keep encodings which survive a round trip */
+				if (!Container.decode(encoded).getData().equals(data))
+					return null;
+
+				return new Candidate(container, size);
+			} catch (IOException | RuntimeException ex) {
+				return null;
+			}
+		}).filter(candidate -> candidate != null).min(Comparator.comparingInt(candidate -> candidate.size))
+				.orElse(null);
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Constants;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.ReferenceTable;
+import net.openrs.cache.ReferenceTable.Entry;
+import net.openrs.util.ByteBufferPool;
+
+/**
+ * Hammers {@link FileStore#read(int, int, ByteBufferPool)} from several threads
+ * at once against a single open store, validating the CRC and version of every
+ * file read against its {@link ReferenceTable}.
+ * <p />
+ * Usage: {@code CacheStressTester [threads] [seconds] [mapped]}
+ */
+public final class CacheStressTester {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		long duration = (args.length > 1 ? Long.parseLong(args[1]) : 30) * 1000L;
+		boolean mapped = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+		FileStore store = mapped ? FileStore.open(Constants.CACHE_PATH, FileStore.Option.MAPPED)
+				: FileStore.open(Constants.CACHE_PATH);
+
+		try (Cache cache = new Cache(store)) {
+			/* collect every file which has a reference table entry */
+			List<int[]> files = new ArrayList<>();
+			for (int type = 0; type < cache.getTypeCount(); type++) {
+				ReferenceTable table = cache.getReferenceTable(type);
+				if (table == null)
+					continue;
+
+				for (int file = 0; file < table.capacity(); file++) {
+					Entry entry = table.getEntry(file);
+					if (entry != null)
+						files.add(new int[] { type, file, entry.getCrc(), entry.getVersion() });
+				}
+			}
+
+			AtomicLong reads = new AtomicLong(), bytes = new AtomicLong();
+			AtomicLong corrupt = new AtomicLong(), errors = new AtomicLong();
+			ByteBufferPool pool = new ByteBufferPool(true, threads * 2);
+			long end = System.currentTimeMillis() + duration;
+
+			Thread[] workers = new Thread[threads];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Thread(() -> {
+					CRC32 crc = new CRC32();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+
+					while (System.currentTimeMillis() < end) {
+						int[] file = files.get(random.nextInt(files.size()));
+
+						ByteBuffer buffer;
+						try {
+							buffer = store.read(file[0], file[1], pool);
+						} catch (IOException ex) {
+							errors.incrementAndGet();
+							continue;
+						}
+
+						try {
+							reads.incrementAndGet();
+							bytes.addAndGet(buffer.limit());
+							if (buffer.limit() <= 2) {
+								corrupt.incrementAndGet();
+								continue;
+							}
+
+							/* last two bytes are the version and shouldn't be included */
+							int version = buffer.getShort(buffer.limit() - 2) & 0xFFFF;
+							buffer.limit(buffer.limit() - 2);
+
+							crc.reset();
+							crc.update(buffer);
+
+							if ((int) crc.getValue() != file[2] || version != file[3]) {
+								corrupt.incrementAndGet();
+							}
+						} finally {
+							pool.release(buffer);
+						}
+					}
+				}, "stress-" + i);
+				workers[i].start();
+			}
+
+			for (Thread worker : workers)
+				worker.join();
+
+			double seconds = duration / 1000D;
+			System.out.println(threads + " threads, " + files.size() + " files" + (mapped ? ", mapped" : ""));
+			System.out.println("Reads: " + reads.get() + " (" + (long) (reads.get() / seconds) + "/s, "
+					+ (bytes.get() / seconds / (1024 * 1024)) + " MB/s)");
+			System.out.println("Corrupt: " + corrupt.get() + ", Errors: " + errors.get());
+		}
+	}
+
+}
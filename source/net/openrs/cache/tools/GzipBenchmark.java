@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Constants;
+import net.openrs.cache.Container;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.util.CompressionUtils;
+
+/**
+ * Compares the reused raw {@link java.util.zip.Inflater}/
+ * {@link java.util.zip.Deflater} codec in {@link CompressionUtils} against
+ * the stream-based codec it replaced, using every GZIP container in the cache
+ * as input. The resident set size is printed after each pass where the
+ * platform reports it.
+ * <p />
+ * Usage: {@code GzipBenchmark [rounds]}
+ */
+public final class GzipBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		List<byte[]> files = new ArrayList<>();
+		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			for (int type = 0; type < cache.getTypeCount(); type++) {
+				for (int file = 0; file < cache.getFileCount(type); file++) {
+					ByteBuffer buf;
+					try {
+						buf = cache.getStore().read(type, file);
+					} catch (IOException ex) {
+						continue;
+					}
+
+					if (buf.remaining() > 0 && buf.get(0) == Container.COMPRESSION_GZIP) {
+						Container container = Container.decode(buf);
+						byte[] data = new byte[container.getData().remaining()];
+						container.getData().get(data);
+						files.add(data);
+					}
+				}
+			}
+		}
+
+		long total = 0;
+		for (byte[] file : files)
+			total += file.length;
+		System.out.println(files.size() + " GZIP files, " + total + " bytes uncompressed");
+
+		List<byte[]> compressed = new ArrayList<>(files.size());
+		for (byte[] file : files) {
+			byte[] gzip = CompressionUtils.gzip(file);
+			if (!Arrays.equals(CompressionUtils.gunzip(gzip), file) || !Arrays.equals(streamGunzip(gzip), file))
+				throw new IOException("Round trip failed.");
+			compressed.add(gzip);
+		}
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (byte[] file : files)
+				streamGzip(file);
+			report("stream gzip", start, total);
+
+			start = System.nanoTime();
+			for (byte[] file : files)
+				CompressionUtils.gzip(file);
+			report("pooled gzip", start, total);
+
+			start = System.nanoTime();
+			for (byte[] file : compressed)
+				streamGunzip(file);
+			report("stream gunzip", start, total);
+
+			start = System.nanoTime();
+			for (byte[] file : compressed)
+				CompressionUtils.gunzip(file);
+			report("pooled gunzip", start, total);
+		}
+	}
+
+	/**
+	 * Prints the throughput of a pass and the current resident set size.
+	 * 
+	 * @param name
+	 *            The name of the pass.
+	 * @param start
+	 *            The time the pass started, in nanoseconds.
+	 * @param bytes
+	 *            The number of uncompressed bytes processed.
+	 */
+	private static void report(String name, long start, long bytes) {
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%-14s %7d ms %8.1f MB/s  rss %s%n", name, elapsed / 1000000,
+				bytes / (elapsed / 1e9) / (1024 * 1024), getResidentSetSize());
+	}
+
+	/**
+	 * Gets the resident set size of this process.
+	 * 
+	 * @return The resident set size, or {@code "n/a"} if it is not available.
+	 */
+	private static String getResidentSetSize() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+				if (line.startsWith("VmRSS:"))
+					return line.substring(6).trim();
+			}
+		} catch (IOException ex) {
+			/* not on linux */
+		}
+		return "n/a";
+	}
+
+	/**
+	 * Compresses a file with a new {@link GZIPOutputStream}, as the cache did
+	 * before the codec was pooled.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @return The compressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static byte[] streamGzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try (OutputStream os = new GZIPOutputStream(bout)) {
+			os.write(bytes);
+		}
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Uncompresses a file with a new {@link GZIPInputStream}, as the cache did
+	 * before the codec was pooled.
+	 * 
+	 * @param bytes
+	 *            The compressed bytes.
+	 * @return The uncompressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static byte[] streamGunzip(byte[] bytes) throws IOException {
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = is.read(buf, 0, buf.length)) != -1)
+				os.write(buf, 0, len);
+			return os.toByteArray();
+		}
+	}
+
+}
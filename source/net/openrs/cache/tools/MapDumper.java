@@ -47,14 +47,17 @@ public class MapDumper {
         }
         
 		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			int[] maps = cache.getRegionFileIds(5, "m");
+			int[] lands = cache.getRegionFileIds(5, "l");
+
 			for (int i = 0; i < 32768; i++) {			
 				int[] keys = XTEAManager.lookupMap(i);
 
 				int x = (i >> 8);
 				int y = (i & 0xFF);
 
-				int map = cache.getFileId(5, "m" + x + "_" + y);
-				int land = cache.getFileId(5, "l" + x + "_" + y);
+				int map = maps[i];
+				int land = lands[i];
 
 				if (map != -1) {
 					Container container = cache.read(5, map);
@@ -189,11 +189,14 @@ public class MapImageDumper {
         Sprites.initialize(cache);
         XTEAManager.touch();
 
+        int[] maps = cache.getRegionFileIds(5, "m");
+        int[] locs = cache.getRegionFileIds(5, "l");
+
         for (int i = 0; i < MAX_REGION; i++) {
             final Region region = new Region(i);
 
-            int map = cache.getFileId(5, region.getTerrainIdentifier());
-            int loc = cache.getFileId(5, region.getLocationsIdentifier());
+            int map = maps[i];
+            int loc = locs[i];
 
             if (map == -1 && loc == -1) {
                 continue;
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.function.IntFunction;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Constants;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.util.XTEAKeyStore;
+import net.openrs.cache.util.XTEAKeyValidator;
+import net.openrs.cache.util.XTEAKeyValidator.Candidate;
+import net.openrs.cache.util.XTEAKeyValidator.Status;
+import net.openrs.cache.util.XTEAManager;
+
+/**
+ * Checks the map keys known to {@link XTEAManager} against every landscape
+ * file, and looks for working keys in other key stores or JSON dumps for the
+ * regions where they fail. Regions whose best key does not come from
+ * {@link XTEAManager} are listed, followed by a summary.
+ * <p />
+ * Usage: {@code MapKeyValidator [-decode] [keys.json | keys.dat]...}
+ */
+public final class MapKeyValidator {
+
+	public static void main(String[] args) throws IOException {
+		boolean decode = false;
+		Map<String, IntFunction<int[]>> sources = new LinkedHashMap<>();
+		sources.put("xtea", region -> {
+			int[] keys = XTEAManager.lookupMap(region);
+			return keys == XTEAManager.NULL_KEYS ? null : keys;
+		});
+
+		for (String arg : args) {
+			if (arg.equals("-decode")) {
+				decode = true;
+				continue;
+			}
+
+			Path path = Paths.get(arg);
+			XTEAKeyStore store = arg.endsWith(".json") ? XTEAKeyStore.wrap(XTEAKeyStore.readJson(path))
+					: XTEAKeyStore.open(path);
+			sources.put(path.getFileName().toString(), store::lookup);
+		}
+
+		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			long start = System.nanoTime();
+			SortedMap<Integer, List<Candidate>> regions = new XTEAKeyValidator(cache).rank(sources, decode);
+			long elapsed = System.nanoTime() - start;
+
+			int valid = 0, recovered = 0, unencrypted = 0, missing = 0, unreadable = 0;
+			for (Map.Entry<Integer, List<Candidate>> entry : regions.entrySet()) {
+				Candidate best = entry.getValue().isEmpty() ? null : entry.getValue().get(0);
+				if (best != null && best.getStatus() == Status.UNREADABLE) {
+					unreadable++;
+					System.out.println(entry.getKey() + " unreadable landscape");
+				} else if (best == null || best.getStatus() == Status.INVALID) {
+					missing++;
+					System.out.println(entry.getKey() + " no valid keys");
+				} else if (best.getSources().contains("xtea")) {
+					valid++;
+				} else if (best.getSources().contains(XTEAKeyValidator.UNENCRYPTED)) {
+					unencrypted++;
+				} else {
+					recovered++;
+					System.out.println(entry.getKey() + " " + best);
+				}
+			}
+
+			System.out.printf(
+					"%d regions in %d ms: %d valid, %d recovered, %d unencrypted, %d without keys, %d unreadable%n",
+					regions.size(), elapsed / 1000000, valid, recovered, unencrypted, missing, unreadable);
+		}
+	}
+
+}
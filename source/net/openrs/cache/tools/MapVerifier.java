@@ -39,9 +39,11 @@ public class MapVerifier {
 		int count = 0;
 
 		try (Cache cache = new Cache(FileStore.open(Constants.CACHE_PATH))) {
+			int[] lands = cache.getRegionFileIds(5, "l");
+
 			for (int i = 0; i < 32_768; i++) {
 				int[] keys = XTEAManager.lookupMap(i);
-				int land = cache.getFileId(5, "l" + (i >> 8) + "_" + (i & 0xFF));
+				int land = lands[i];
 
 				if (land != -1) {
 					try {
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import net.openrs.cache.CompactReferenceTable;
+import net.openrs.cache.Constants;
+import net.openrs.cache.Container;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.ReferenceTable;
+import net.openrs.cache.util.XTEAManager;
+
+/**
+ * Compares the decode time and retained heap of {@link ReferenceTable} and
+ * {@link CompactReferenceTable} over every reference table in the cache,
+ * after checking that both answer every query the same way.
+ * <p />
+ * Usage: {@code ReferenceTableBenchmark [rounds] [copies]}
+ */
+public final class ReferenceTableBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int copies = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		List<ByteBuffer> tables = new ArrayList<>();
+		try (FileStore store = FileStore.open(Constants.CACHE_PATH)) {
+			for (int type = 0; type < store.getFileCount(255); type++) {
+				ByteBuffer buf = store.read(255, type);
+				if (buf.remaining() > 0)
+					tables.add(Container.decode(buf, XTEAManager.lookupTable(type)).getData());
+			}
+		}
+
+		int entries = 0;
+		for (ByteBuffer table : tables) {
+			ReferenceTable expected = ReferenceTable.decode(table.duplicate());
+			compare(expected, CompactReferenceTable.decode(table.duplicate()));
+			entries += expected.size();
+		}
+		System.out.println(tables.size() + " tables, " + entries + " entries match");
+
+		for (int round = 0; round < rounds; round++) {
+			time("map", tables, ReferenceTable::decode);
+			time("compact", tables, CompactReferenceTable::decode);
+		}
+
+		System.out.println("map      retains " + retained(tables, copies, ReferenceTable::decode) / copies / 1024 + " KB");
+		System.out.println("compact  retains " + retained(tables, copies, CompactReferenceTable::decode) / copies / 1024
+				+ " KB");
+	}
+
+	/**
+	 * Times decoding every table once.
+	 * 
+	 * @param name
+	 *            The name of the pass.
+	 * @param tables
+	 *            The encoded tables.
+	 * @param decoder
+	 *            The decoder.
+	 */
+	private static void time(String name, List<ByteBuffer> tables, Function<ByteBuffer, ?> decoder) {
+		long start = System.nanoTime();
+		for (ByteBuffer table : tables)
+			decoder.apply(table.duplicate());
+		System.out.printf("%-8s %8.2f ms%n", name, (System.nanoTime() - start) / 1e6);
+	}
+
+	/**
+	 * Measures the heap retained by several decoded copies of every table.
+	 * 
+	 * @param tables
+	 *            The encoded tables.
+	 * @param copies
+	 *            The number of copies to keep.
+	 * @param decoder
+	 *            The decoder.
+	 * @return The number of bytes retained.
+	 */
+	private static long retained(List<ByteBuffer> tables, int copies, Function<ByteBuffer, ?> decoder) {
+		long before = usedHeap();
+		List<Object> decoded = new ArrayList<>();
+		for (int copy = 0; copy < copies; copy++) {
+			for (ByteBuffer table : tables)
+				decoded.add(decoder.apply(table.duplicate()));
+		}
+
+		long after = usedHeap();
+		if (decoded.isEmpty())
+			throw new IllegalStateException();
+		return after - before;
+	}
+
+	/**
+	 * Gets the amount of heap in use after a collection.
+	 * 
+	 * @return The number of bytes.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Checks that two tables answer every query the same way.
+	 * 
+	 * @param expected
+	 *            The map based table.
+	 * @param actual
+	 *            The compact table.
+	 * @throws IllegalStateException
+	 *             if they differ.
+	 */
+	private static void compare(ReferenceTable expected, CompactReferenceTable actual) {
+		check(expected.capacity() == actual.capacity() && expected.size() == actual.size()
+				&& expected.getFlags() == actual.getFlags() && expected.getVersion() == actual.getVersion()
+				&& expected.getArchiveSize() == actual.getArchiveSize(), "header");
+
+		for (int id = 0; id < expected.capacity(); id++) {
+			ReferenceTable.Entry a = expected.getEntry(id);
+			CompactReferenceTable.Entry b = actual.getEntry(id);
+			if (a == null || b == null) {
+				check(a == null && b == null, "presence of " + id);
+				continue;
+			}
+
+			check(a.index() == b.index() && a.getCrc() == b.getCrc() && a.getVersion() == b.getVersion()
+					&& a.getIdentifier() == b.getIdentifier() && a.getHash() == b.getHash()
+					&& a.getCompressed() == b.getCompressed() && a.getUncompressed() == b.getUncompressed()
+					&& Arrays.equals(a.getWhirlpool(), b.getWhirlpool()) && a.capacity() == b.capacity()
+					&& a.size() == b.size(), "entry " + id);
+
+			for (int child = 0; child < a.capacity(); child++) {
+				ReferenceTable.ChildEntry x = a.getEntry(child), y = b.getEntry(child);
+				if (x == null || y == null) {
+					check(x == null && y == null, "presence of " + id + ":" + child);
+					continue;
+				}
+				check(x.index() == y.index() && x.getIdentifier() == y.getIdentifier(), "child " + id + ":" + child);
+			}
+		}
+	}
+
+	/**
+	 * Throws if a comparison failed.
+	 * 
+	 * @param condition
+	 *            The result of the comparison.
+	 * @param what
+	 *            What was compared.
+	 */
+	private static void check(boolean condition, String what) {
+		if (!condition)
+			throw new IllegalStateException("Mismatch in " + what + ".");
+	}
+
+}
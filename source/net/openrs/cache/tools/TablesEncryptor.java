@@ -26,12 +26,16 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 
 import net.openrs.cache.Cache;
 import net.openrs.cache.Constants;
 import net.openrs.cache.Container;
 import net.openrs.cache.FileStore;
+import net.openrs.cache.util.XTEAKeyStore;
 
 /**
  * @author Kyle Friz
@@ -61,6 +65,11 @@ public class TablesEncryptor {
 					cache.getStore().write(255, type, buffer);
 				}
 			}
+
+			/* keep an imported key store in step with the text files */
+			Path store = Paths.get(Constants.XTABLE_STORE_PATH);
+			if (Files.exists(store))
+				XTEAKeyStore.write(store, XTEAKeyStore.readText(Paths.get(Constants.XTABLE_PATH)));
 			
 		} catch (IOException e) {
 			e.printStackTrace();
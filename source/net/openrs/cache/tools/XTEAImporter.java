@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import net.openrs.cache.Constants;
+import net.openrs.cache.util.XTEAKeyStore;
+import net.openrs.cache.util.XTEAManager;
+
+/**
+ * Imports XTEA keys into the binary {@link XTEAKeyStore}s which
+ * {@link XTEAManager} loads in place of the directories of text files. The
+ * map keys come from a JSON dump if one is given, and otherwise from
+ * {@link Constants#XMAP_PATH}. The reference table keys always come from
+ * {@link Constants#XTABLE_PATH}, if it exists. A store is never overwritten
+ * with an empty one: no map keys is an error and no table keys is skipped.
+ * <p />
+ * {@link XTEAManager} still merges text files changed after a store was
+ * written over it, but has to read them all on every start until the keys
+ * are imported again.
+ * <p />
+ * Usage: {@code XTEAImporter [keys.json]}
+ */
+public final class XTEAImporter {
+
+	public static void main(String[] args) throws IOException {
+		Map<Integer, int[]> maps = args.length > 0 ? XTEAKeyStore.readJson(Paths.get(args[0]))
+				: XTEAKeyStore.readText(Paths.get(Constants.XMAP_PATH));
+		if (maps.isEmpty())
+			throw new IOException("No map keys found, not overwriting " + Constants.XMAP_STORE_PATH + ".");
+
+		XTEAKeyStore.write(Paths.get(Constants.XMAP_STORE_PATH), maps);
+		System.out.println("Imported " + maps.size() + " map keys into " + Constants.XMAP_STORE_PATH);
+
+		Path tableDir = Paths.get(Constants.XTABLE_PATH);
+		if (Files.isDirectory(tableDir)) {
+			Map<Integer, int[]> tables = XTEAKeyStore.readText(tableDir);
+			if (tables.isEmpty()) {
+				System.out.println("No table keys found, left " + Constants.XTABLE_STORE_PATH + " alone");
+			} else {
+				XTEAKeyStore.write(Paths.get(Constants.XTABLE_STORE_PATH), tables);
+				System.out.println("Imported " + tables.size() + " table keys into " + Constants.XTABLE_STORE_PATH);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.tools.bzip2.BZip2Constants;
+
+/**
+ * Compresses large files with BZIP2 across a {@link ForkJoinPool}.
+ * <p />
+ * The input is split exactly where a single {@code CBZip2OutputStream} would
+ * end each block, each block is compressed on its own, and the compressed
+ * blocks are spliced back together bit by bit under a single end of stream
+ * marker. The result is identical to {@link CompressionUtils#bzip2(byte[])},
+ * just produced on several cores.
+ */
+public final class Bzip2Compressor {
+
+	/**
+	 * The magic number at the end of the stream.
+	 */
+	private static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * The number of bytes, after the initial run-length coding, at which
+	 * {@code CBZip2OutputStream} ends a block at its 100 KB block size.
+	 */
+	private static final int BLOCK_LIMIT = BZip2Constants.baseBlockSize - 20;
+
+	/**
+	 * The longest run the initial run-length coding writes as one unit.
+	 */
+	private static final int MAX_RUN = 255;
+
+	/**
+	 * Compresses a file on the common pool.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @return The compressed bytes without the header.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static byte[] compress(byte[] bytes) throws IOException {
+		return compress(bytes, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compresses a file on the specified pool. Files which fit in a single
+	 * block are compressed on the calling thread.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @param pool
+	 *            The pool to compress the blocks on.
+	 * @return The compressed bytes without the header.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static byte[] compress(byte[] bytes, ForkJoinPool pool) throws IOException {
+		int[] splits = split(bytes);
+		if (splits.length <= 2)
+			return CompressionUtils.bzip2(bytes);
+
+		List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(splits.length - 1);
+		for (int i = 0; i < splits.length - 1; i++) {
+			int start = splits[i], end = splits[i + 1];
+			tasks.add(pool.submit(() -> {
+				try {
+					return CompressionUtils.bzip2(Arrays.copyOfRange(bytes, start, end));
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}));
+		}
+
+		BitWriter writer = new BitWriter(bytes.length / 4 + 64);
+		int combinedCrc = 0;
+		for (ForkJoinTask<byte[]> task : tasks) {
+			byte[] stream;
+			try {
+				stream = task.join();
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+
+			/* each stream is one block followed by the end of stream marker */
+			int blockCrc = getBits(stream, 48, 32);
+			long blockBits = findEnd(stream, blockCrc);
+			writer.write(stream, blockBits);
+
+			combinedCrc = (combinedCrc << 1 | combinedCrc >>> 31) ^ blockCrc;
+		}
+
+		writer.write(END_MAGIC, 48);
+		writer.write(combinedCrc & 0xFFFFFFFFL, 32);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Finds where {@code CBZip2OutputStream} would end each block, by
+	 * replaying its initial run-length coding.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @return The offset of the start of each block, followed by the length
+	 *         of the input.
+	 */
+	private static int[] split(byte[] bytes) {
+		int[] splits = new int[8];
+		int count = 1;
+
+		int pos = 0, last = -1;
+		while (pos < bytes.length) {
+			byte value = bytes[pos];
+			int run = 1;
+			while (run < MAX_RUN && pos + run < bytes.length && bytes[pos + run] == value)
+				run++;
+
+			if (last >= BLOCK_LIMIT) {
+				if (count == splits.length)
+					splits = Arrays.copyOf(splits, count * 2);
+				splits[count++] = pos;
+				last = -1;
+			}
+
+			last += run < 4 ? run : 5;
+			pos += run;
+		}
+
+		splits = Arrays.copyOf(splits, count + 1);
+		splits[count] = bytes.length;
+		return splits;
+	}
+
+	/**
+	 * Finds the length of the block in a single block stream, by looking for
+	 * the end of stream marker in front of each possible amount of padding.
+	 * 
+	 * @param stream
+	 *            The stream, without the header.
+	 * @param blockCrc
+	 *            The CRC of the block, which the marker is followed by.
+	 * @return The length of the block, in bits.
+	 * @throws IOException
+	 *             if the end of stream marker could not be found.
+	 */
+	private static long findEnd(byte[] stream, int blockCrc) throws IOException {
+		long bits = stream.length * 8L;
+		for (int padding = 0; padding < 8; padding++) {
+			long end = bits - padding - 80;
+			if (end < 80)
+				break;
+
+			if (getBits(stream, end + 48, 32) == blockCrc && getBits(stream, end, 24) == (int) (END_MAGIC >>> 24)
+					&& getBits(stream, end + 24, 24) == (int) (END_MAGIC & 0xFFFFFF))
+				return end;
+		}
+		throw new IOException("BZIP2 end of stream marker not found.");
+	}
+
+	/**
+	 * Reads a number of bits from an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param pos
+	 *            The position of the first bit.
+	 * @param count
+	 *            The number of bits, at most 32.
+	 * @return The bits.
+	 */
+	private static int getBits(byte[] bytes, long pos, int count) {
+		long value = 0;
+		for (int i = 0; i < count; i++, pos++)
+			value = value << 1 | (bytes[(int) (pos >>> 3)] >>> (7 - (pos & 7)) & 1);
+		return (int) value;
+	}
+
+	/**
+	 * Appends bits to a growable array, most significant bit first.
+	 */
+	private static final class BitWriter {
+
+		/**
+		 * The bytes written so far.
+		 */
+		private byte[] bytes;
+
+		/**
+		 * The number of whole bytes written.
+		 */
+		private int length;
+
+		/**
+		 * The pending bits, right-aligned.
+		 */
+		private long buffer;
+
+		/**
+		 * The number of pending bits, always less than eight between calls.
+		 */
+		private int count;
+
+		/**
+		 * Creates a new bit writer.
+		 * 
+		 * @param capacity
+		 *            The initial capacity, in bytes.
+		 */
+		public BitWriter(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		/**
+		 * Writes a number of bits.
+		 * 
+		 * @param value
+		 *            The bits, right-aligned.
+		 * @param bits
+		 *            The number of bits, at most 56.
+		 */
+		public void write(long value, int bits) {
+			buffer = buffer << bits | value & ((1L << bits) - 1);
+			count += bits;
+
+			if (length + 8 > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 8));
+
+			while (count >= 8) {
+				count -= 8;
+				bytes[length++] = (byte) (buffer >>> count);
+			}
+		}
+
+		/**
+		 * Writes the leading bits of an array.
+		 * 
+		 * @param src
+		 *            The array.
+		 * @param bits
+		 *            The number of bits.
+		 */
+		public void write(byte[] src, long bits) {
+			int whole = (int) (bits >>> 3);
+			if (count == 0) {
+				/* byte aligned, so copy the whole bytes straight across */
+				if (length + whole > bytes.length)
+					bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + whole));
+				System.arraycopy(src, 0, bytes, length, whole);
+				length += whole;
+			} else {
+				for (int i = 0; i < whole; i++)
+					write(src[i] & 0xFF, 8);
+			}
+
+			int rest = (int) (bits & 7);
+			if (rest > 0)
+				write((src[whole] & 0xFF) >>> (8 - rest), rest);
+		}
+
+		/**
+		 * Pads the pending bits with zeros and returns the written bytes.
+		 * 
+		 * @return The bytes.
+		 */
+		public byte[] toByteArray() {
+			if (count > 0)
+				write(0, 8 - count);
+			return Arrays.copyOf(bytes, length);
+		}
+
+	}
+
+}
@@ -0,0 +1,695 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.tools.bzip2.BZip2Constants;
+
+/**
+ * A block-oriented BZIP2 decompressor which works on whole arrays rather than
+ * a byte at a time. Huffman codes are decoded through a lookup table for the
+ * common short codes, and each block is reassembled with a single pass of the
+ * inverse Burrows-Wheeler transform.
+ * <p />
+ * Streams are expected in the form the cache stores them: the {@code BZh}
+ * header is stripped and the block size is 100 KB.
+ */
+public final class Bzip2Decompressor {
+
+	/**
+	 * The magic number at the start of a block.
+	 */
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+
+	/**
+	 * The magic number at the end of the stream.
+	 */
+	private static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * The maximum number of bytes in a block before run-length decoding.
+	 */
+	private static final int BLOCK_SIZE = BZip2Constants.baseBlockSize;
+
+	/**
+	 * The maximum number of Huffman tables.
+	 */
+	private static final int MAX_GROUPS = BZip2Constants.N_GROUPS;
+
+	/**
+	 * The number of symbols decoded with each selected table.
+	 */
+	private static final int GROUP_SIZE = BZip2Constants.G_SIZE;
+
+	/**
+	 * The maximum number of symbols in the alphabet.
+	 */
+	private static final int MAX_ALPHA_SIZE = BZip2Constants.MAX_ALPHA_SIZE;
+
+	/**
+	 * The maximum length of a Huffman code.
+	 */
+	private static final int MAX_CODE_LENGTH = 20;
+
+	/**
+	 * The number of bits resolved by a single table lookup.
+	 */
+	private static final int LOOKUP_BITS = 10;
+
+	/**
+	 * The symbol which adds one times the current weight to a run.
+	 */
+	private static final int RUNA = BZip2Constants.RUNA;
+
+	/**
+	 * The symbol which adds two times the current weight to a run.
+	 */
+	private static final int RUNB = BZip2Constants.RUNB;
+
+	/**
+	 * The CRC table, for the big-endian CRC-32 BZIP2 uses.
+	 */
+	private static final int[] CRC_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < CRC_TABLE.length; i++) {
+			int crc = i << 24;
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	/**
+	 * The per-thread decompressor, so its tables are allocated once.
+	 */
+	private static final ThreadLocal<Bzip2Decompressor> decompressor = ThreadLocal
+			.withInitial(Bzip2Decompressor::new);
+
+	/**
+	 * Decompresses a stream into an array which must be exactly the size of
+	 * the decompressed data.
+	 * 
+	 * @param buffer
+	 *            The compressed bytes, from the position to the limit of the
+	 *            buffer. The position is left untouched.
+	 * @param uncompressed
+	 *            The array to decompress into.
+	 * @throws IOException
+	 *             if the stream is malformed, or if the decompressed data is
+	 *             not exactly the size of the array.
+	 */
+	public static void decompress(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+		byte[] bytes;
+		int off, len = buffer.remaining();
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			off = buffer.arrayOffset() + buffer.position();
+		} else {
+			bytes = new byte[len];
+			buffer.duplicate().get(bytes);
+			off = 0;
+		}
+
+		Bzip2Decompressor decompressor = Bzip2Decompressor.decompressor.get();
+		try {
+			int written = decompressor.run(bytes, off, len, uncompressed, false);
+			if (written != uncompressed.length)
+				throw new IOException("Length mismatch. [ " + written + ", " + uncompressed.length + " ]");
+		} finally {
+			decompressor.release();
+		}
+	}
+
+	/**
+	 * Decompresses a stream of unknown size.
+	 * 
+	 * @param bytes
+	 *            The compressed bytes.
+	 * @return The decompressed bytes.
+	 * @throws IOException
+	 *             if the stream is malformed.
+	 */
+	public static byte[] decompress(byte[] bytes) throws IOException {
+		Bzip2Decompressor decompressor = Bzip2Decompressor.decompressor.get();
+		try {
+			int written = decompressor.run(bytes, 0, bytes.length, new byte[Math.max(bytes.length * 4, 64)], true);
+			return Arrays.copyOf(decompressor.out, written);
+		} finally {
+			decompressor.release();
+		}
+	}
+
+	/**
+	 * The compressed bytes.
+	 */
+	private byte[] in;
+
+	/**
+	 * The position of the next compressed byte.
+	 */
+	private int inPos;
+
+	/**
+	 * The end of the compressed bytes.
+	 */
+	private int inEnd;
+
+	/**
+	 * The bits read ahead of the current position, right-aligned.
+	 */
+	private long bitBuffer;
+
+	/**
+	 * The number of valid bits in the bit buffer.
+	 */
+	private int bitCount;
+
+	/**
+	 * The number of zero bits padded onto the end of the stream.
+	 */
+	private int padding;
+
+	/**
+	 * The decompressed bytes.
+	 */
+	private byte[] out;
+
+	/**
+	 * The position of the next decompressed byte.
+	 */
+	private int outPos;
+
+	/**
+	 * A flag indicating if the output array may be grown.
+	 */
+	private boolean growable;
+
+	/**
+	 * The block, first as bytes and then as the inverse BWT vector, with the
+	 * byte in the low eight bits and the link in the upper bits.
+	 */
+	private final int[] tt = new int[BLOCK_SIZE];
+
+	/**
+	 * Maps the symbols in use to the bytes they stand for.
+	 */
+	private final byte[] seqToUnseq = new byte[256];
+
+	/**
+	 * The move-to-front list.
+	 */
+	private final byte[] mtf = new byte[256];
+
+	/**
+	 * The Huffman table used by each group of symbols.
+	 */
+	private final byte[] selectors = new byte[1 << 15];
+
+	/**
+	 * The number of times each byte occurs in the block.
+	 */
+	private final int[] counts = new int[256];
+
+	/**
+	 * The position in the inverse BWT vector where each byte starts.
+	 */
+	private final int[] starts = new int[257];
+
+	/**
+	 * The code lengths of each symbol of the table being read.
+	 */
+	private final int[] lengths = new int[MAX_ALPHA_SIZE];
+
+	/**
+	 * The lookup tables for short codes, indexed by the next
+	 * {@link #LOOKUP_BITS} bits. Each entry holds the symbol in the upper bits
+	 * and the code length in the low eight bits, or zero for longer codes.
+	 */
+	private final int[][] lookup = new int[MAX_GROUPS][1 << LOOKUP_BITS];
+
+	/**
+	 * The largest code of each length, for codes longer than the lookup.
+	 */
+	private final int[][] limit = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+
+	/**
+	 * The offset from a code of each length to its index in {@link #perm}.
+	 */
+	private final int[][] base = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+
+	/**
+	 * The symbols of each table, sorted by code length.
+	 */
+	private final int[][] perm = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+
+	/**
+	 * The shortest code length of each table.
+	 */
+	private final int[] minLengths = new int[MAX_GROUPS];
+
+	/**
+	 * The longest code length of each table.
+	 */
+	private final int[] maxLengths = new int[MAX_GROUPS];
+
+	/**
+	 * Creates a new decompressor.
+	 */
+	private Bzip2Decompressor() {
+
+	}
+
+	/**
+	 * Decompresses a stream.
+	 * 
+	 * @param in
+	 *            The array holding the compressed bytes.
+	 * @param off
+	 *            The offset of the compressed bytes.
+	 * @param len
+	 *            The number of compressed bytes.
+	 * @param out
+	 *            The array to decompress into.
+	 * @param growable
+	 *            A flag indicating if the output array may be grown.
+	 * @return The number of bytes decompressed.
+	 * @throws IOException
+	 *             if the stream is malformed.
+	 */
+	private int run(byte[] in, int off, int len, byte[] out, boolean growable) throws IOException {
+		this.in = in;
+		this.inPos = off;
+		this.inEnd = off + len;
+		this.bitBuffer = 0;
+		this.bitCount = 0;
+		this.padding = 0;
+		this.out = out;
+		this.outPos = 0;
+		this.growable = growable;
+
+		int combinedCrc = 0;
+		while (true) {
+			long magic = (long) getBits(24) << 24 | getBits(24);
+			if (magic == END_MAGIC) {
+				int storedCrc = getBits(16) << 16 | getBits(16);
+				checkEnd();
+
+				if (storedCrc != combinedCrc)
+					throw new IOException("BZIP2 stream CRC mismatch.");
+				return outPos;
+			} else if (magic != BLOCK_MAGIC) {
+				throw new IOException("Bad BZIP2 block header.");
+			}
+
+			int storedCrc = getBits(16) << 16 | getBits(16);
+			int blockCrc = decodeBlock();
+			if (blockCrc != storedCrc)
+				throw new IOException("BZIP2 block CRC mismatch.");
+
+			combinedCrc = (combinedCrc << 1 | combinedCrc >>> 31) ^ blockCrc;
+		}
+	}
+
+	/**
+	 * Drops the references to the arrays of the last stream.
+	 */
+	private void release() {
+		in = null;
+		out = null;
+	}
+
+	/**
+	 * Decodes a single block, writing it to the output.
+	 * 
+	 * @return The CRC of the decoded block.
+	 * @throws IOException
+	 *             if the block is malformed.
+	 */
+	private int decodeBlock() throws IOException {
+		boolean randomised = getBits(1) == 1;
+		int origPtr = getBits(24);
+
+		/* read the bytes in use */
+		int inUse16 = getBits(16), inUse = 0;
+		for (int i = 0; i < 16; i++) {
+			if ((inUse16 & (0x8000 >>> i)) != 0) {
+				int bits = getBits(16);
+				for (int j = 0; j < 16; j++) {
+					if ((bits & (0x8000 >>> j)) != 0)
+						seqToUnseq[inUse++] = (byte) (i * 16 + j);
+				}
+			}
+		}
+		if (inUse == 0)
+			throw new IOException("BZIP2 block uses no bytes.");
+
+		int alphaSize = inUse + 2;
+
+		/* read the selectors, which are move-to-front coded */
+		int groups = getBits(3);
+		int selectorCount = getBits(15);
+		if (groups < 2 || groups > MAX_GROUPS || selectorCount == 0)
+			throw new IOException("Bad BZIP2 table count.");
+
+		for (int i = 0; i < groups; i++)
+			mtf[i] = (byte) i;
+
+		for (int i = 0; i < selectorCount; i++) {
+			int index = 0;
+			while (getBits(1) == 1) {
+				if (++index >= groups)
+					throw new IOException("Bad BZIP2 selector.");
+			}
+
+			byte selector = mtf[index];
+			System.arraycopy(mtf, 0, mtf, 1, index);
+			mtf[0] = selector;
+			selectors[i] = selector;
+		}
+
+		/* read the code lengths, which are delta coded, and build the tables */
+		for (int table = 0; table < groups; table++) {
+			int length = getBits(5);
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				while (true) {
+					if (length < 1 || length > MAX_CODE_LENGTH)
+						throw new IOException("Bad BZIP2 code length.");
+					if (getBits(1) == 0)
+						break;
+					length += getBits(1) == 0 ? 1 : -1;
+				}
+				lengths[symbol] = length;
+			}
+			createTable(table, alphaSize);
+		}
+
+		/* decode the symbols, undoing the run-length and move-to-front coding */
+		for (int i = 0; i < 256; i++)
+			mtf[i] = (byte) i;
+		Arrays.fill(counts, 0);
+
+		int endOfBlock = inUse + 1;
+		int count = 0, run = 0, weight = 1;
+		int group = -1, groupLeft = 0;
+		int[] lookup = null, limit = null, base = null, perm = null;
+		int minLength = 0, maxLength = 0;
+
+		while (true) {
+			if (groupLeft == 0) {
+				if (++group >= selectorCount)
+					throw new IOException("Ran out of BZIP2 selectors.");
+
+				int table = selectors[group];
+				lookup = this.lookup[table];
+				limit = this.limit[table];
+				base = this.base[table];
+				perm = this.perm[table];
+				minLength = minLengths[table];
+				maxLength = maxLengths[table];
+				groupLeft = GROUP_SIZE;
+			}
+			groupLeft--;
+
+			/* decode the next symbol, using the lookup table if we can */
+			if (bitCount < MAX_CODE_LENGTH)
+				refill();
+
+			int symbol;
+			int entry = lookup[(int) (bitBuffer >>> (bitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1)];
+			if (entry != 0) {
+				bitCount -= entry & 0xFF;
+				symbol = entry >>> 8;
+			} else {
+				int length = Math.max(minLength, LOOKUP_BITS + 1);
+				int code = (int) (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+				while (length <= maxLength && code > limit[length]) {
+					length++;
+					code = (int) (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+				}
+				if (length > maxLength)
+					throw new IOException("Bad BZIP2 Huffman code.");
+
+				bitCount -= length;
+				symbol = perm[code - base[length]];
+			}
+
+			if (symbol == RUNA || symbol == RUNB) {
+				/* runs of the front byte are written in bijective base 2 */
+				run += weight << symbol;
+				weight <<= 1;
+				if (run > BLOCK_SIZE)
+					throw new IOException("BZIP2 run too long.");
+				continue;
+			}
+
+			if (run > 0) {
+				if (count + run > BLOCK_SIZE)
+					throw new IOException("BZIP2 block too long.");
+
+				int value = seqToUnseq[mtf[0] & 0xFF] & 0xFF;
+				counts[value] += run;
+				Arrays.fill(tt, count, count + run, value);
+				count += run;
+				run = 0;
+				weight = 1;
+			}
+
+			if (symbol == endOfBlock)
+				break;
+
+			if (count >= BLOCK_SIZE)
+				throw new IOException("BZIP2 block too long.");
+
+			int index = symbol - 1;
+			byte front = mtf[index];
+			System.arraycopy(mtf, 0, mtf, 1, index);
+			mtf[0] = front;
+
+			int value = seqToUnseq[front & 0xFF] & 0xFF;
+			counts[value]++;
+			tt[count++] = value;
+		}
+
+		if (origPtr >= count)
+			throw new IOException("Bad BZIP2 origin pointer.");
+
+		/* link up the inverse BWT vector */
+		starts[0] = 0;
+		for (int i = 0; i < 256; i++)
+			starts[i + 1] = starts[i] + counts[i];
+
+		for (int i = 0; i < count; i++)
+			tt[starts[tt[i] & 0xFF]++] |= i << 8;
+
+		return writeBlock(tt[origPtr] >>> 8, count, randomised);
+	}
+
+	/**
+	 * Walks the inverse BWT vector, undoing the initial run-length coding and
+	 * the randomisation of old encoders.
+	 * 
+	 * @param pos
+	 *            The position of the first byte in the vector.
+	 * @param count
+	 *            The number of bytes in the block.
+	 * @param randomised
+	 *            A flag indicating if the block was randomised.
+	 * @return The CRC of the written bytes.
+	 * @throws IOException
+	 *             if the output is full.
+	 */
+	private int writeBlock(int pos, int count, boolean randomised) throws IOException {
+		int[] tt = this.tt;
+		int crc = -1;
+		int last = -1, run = 0;
+		int randomLeft = 0, randomPos = 0;
+
+		for (int i = 0; i < count; i++) {
+			pos = tt[pos];
+			int value = pos & 0xFF;
+			pos >>>= 8;
+
+			if (randomised) {
+				if (randomLeft == 0) {
+					randomLeft = BZip2Constants.rNums[randomPos];
+					randomPos = (randomPos + 1) & 511;
+				}
+				randomLeft--;
+				if (randomLeft == 1)
+					value ^= 1;
+			}
+
+			if (run == 4) {
+				/* a run of four is followed by the number of extra repeats */
+				ensure(value);
+				byte b = (byte) last;
+				for (int j = 0; j < value; j++) {
+					out[outPos++] = b;
+					crc = crc << 8 ^ CRC_TABLE[(crc >>> 24 ^ last) & 0xFF];
+				}
+				run = 0;
+				last = -1;
+				continue;
+			}
+
+			if (value == last) {
+				run++;
+			} else {
+				run = 1;
+				last = value;
+			}
+
+			ensure(1);
+			out[outPos++] = (byte) value;
+			crc = crc << 8 ^ CRC_TABLE[(crc >>> 24 ^ value) & 0xFF];
+		}
+
+		return ~crc;
+	}
+
+	/**
+	 * Builds the decoding tables for the code lengths in {@link #lengths}.
+	 * 
+	 * @param table
+	 *            The index of the table.
+	 * @param alphaSize
+	 *            The number of symbols.
+	 * @throws IOException
+	 *             if the code lengths are over-subscribed.
+	 */
+	private void createTable(int table, int alphaSize) throws IOException {
+		int[] lookup = this.lookup[table], limit = this.limit[table], base = this.base[table], perm = this.perm[table];
+
+		int minLength = MAX_CODE_LENGTH, maxLength = 0;
+		for (int i = 0; i < alphaSize; i++) {
+			minLength = Math.min(minLength, lengths[i]);
+			maxLength = Math.max(maxLength, lengths[i]);
+		}
+		minLengths[table] = minLength;
+		maxLengths[table] = maxLength;
+
+		/* codes are canonical: by length, then by symbol */
+		int index = 0;
+		for (int length = minLength; length <= maxLength; length++) {
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				if (lengths[symbol] == length)
+					perm[index++] = symbol;
+			}
+		}
+
+		Arrays.fill(base, 0);
+		for (int i = 0; i < alphaSize; i++)
+			base[lengths[i] + 1]++;
+		for (int i = 1; i < base.length; i++)
+			base[i] += base[i - 1];
+
+		/* base now holds the index in perm of the first code of each length */
+		Arrays.fill(lookup, 0);
+		int code = 0;
+		for (int length = minLength; length <= maxLength; length++) {
+			int first = base[length], end = base[length + 1];
+			if (code + end - first > 1 << length)
+				throw new IOException("Bad BZIP2 Huffman table.");
+
+			if (length <= LOOKUP_BITS) {
+				for (int i = first; i < end; i++) {
+					int shift = LOOKUP_BITS - length;
+					int start = (code + i - first) << shift;
+					Arrays.fill(lookup, start, start + (1 << shift), perm[i] << 8 | length);
+				}
+			}
+
+			code += end - first;
+			limit[length] = code - 1;
+			code <<= 1;
+		}
+
+		for (int length = maxLength; length > minLength; length--)
+			base[length] = ((limit[length - 1] + 1) << 1) - base[length];
+	}
+
+	/**
+	 * Makes room for a number of bytes in the output.
+	 * 
+	 * @param count
+	 *            The number of bytes.
+	 * @throws IOException
+	 *             if the output is full and may not be grown.
+	 */
+	private void ensure(int count) throws IOException {
+		if (outPos + count <= out.length)
+			return;
+
+		if (!growable)
+			throw new IOException("Length mismatch. [ > " + out.length + ", " + out.length + " ]");
+
+		out = Arrays.copyOf(out, Math.max(out.length * 2, outPos + count));
+	}
+
+	/**
+	 * Reads a number of bits.
+	 * 
+	 * @param count
+	 *            The number of bits, at most 24.
+	 * @return The bits.
+	 */
+	private int getBits(int count) {
+		if (bitCount < count)
+			refill();
+
+		bitCount -= count;
+		return (int) (bitBuffer >>> bitCount) & ((1 << count) - 1);
+	}
+
+	/**
+	 * Tops up the bit buffer. Past the end of the stream, zero bits are
+	 * padded on so that lookups never have to check for the end, and
+	 * {@link #checkEnd} tells if any of them were consumed.
+	 */
+	private void refill() {
+		while (bitCount <= 56) {
+			if (inPos < inEnd) {
+				bitBuffer = bitBuffer << 8 | in[inPos++] & 0xFF;
+			} else {
+				bitBuffer <<= 8;
+				padding += 8;
+			}
+			bitCount += 8;
+		}
+	}
+
+	/**
+	 * Checks that the stream did not end before the last bit read.
+	 * 
+	 * @throws IOException
+	 *             if the stream was truncated.
+	 */
+	private void checkEnd() throws IOException {
+		if (padding > bitCount)
+			throw new IOException("Unexpected end of BZIP2 data.");
+	}
+
+}
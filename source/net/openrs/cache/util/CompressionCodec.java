@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.openrs.cache.Container;
+
+/**
+ * A {@link CompressionCodec} compresses and uncompresses the data held in a
+ * {@link Container} of one compression type. Codecs are looked up by type
+ * through {@link CompressionCodecs}.
+ */
+public interface CompressionCodec {
+
+	/**
+	 * The level which selects the codec's default.
+	 */
+	int DEFAULT_LEVEL = -1;
+
+	/**
+	 * Gets the compression type this codec handles, as stored in the first
+	 * byte of a container.
+	 * 
+	 * @return The compression type.
+	 */
+	int getType();
+
+	/**
+	 * Gets the name of this codec.
+	 * 
+	 * @return The name.
+	 */
+	String getName();
+
+	/**
+	 * Gets the levels this codec can compress at, not including
+	 * {@link #DEFAULT_LEVEL}.
+	 * 
+	 * @return The levels.
+	 */
+	int[] getLevels();
+
+	/**
+	 * Compresses a file.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @param level
+	 *            The level, one of {@link #getLevels()} or
+	 *            {@link #DEFAULT_LEVEL}.
+	 * @return The compressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 * @throws IllegalArgumentException
+	 *             if the level is not supported.
+	 */
+	byte[] compress(byte[] bytes, int level) throws IOException;
+
+	/**
+	 * Uncompresses a file into an array which is exactly the size of the
+	 * uncompressed data.
+	 * 
+	 * @param buffer
+	 *            The compressed bytes, from the position to the limit of the
+	 *            buffer. The position is left untouched.
+	 * @param uncompressed
+	 *            The array to uncompress into.
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the uncompressed data is not
+	 *             exactly the size of the array.
+	 */
+	void decompress(ByteBuffer buffer, byte[] uncompressed) throws IOException;
+
+}
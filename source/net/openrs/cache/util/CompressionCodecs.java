@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+
+import net.openrs.cache.Container;
+
+/**
+ * The registry of {@link CompressionCodec}s, indexed by compression type. The
+ * codecs for {@link Container#COMPRESSION_NONE},
+ * {@link Container#COMPRESSION_BZIP2} and {@link Container#COMPRESSION_GZIP}
+ * are registered up front.
+ */
+public final class CompressionCodecs {
+
+	/**
+	 * The codec which stores files as they are.
+	 */
+	private static final class NoneCodec implements CompressionCodec {
+
+		@Override
+		public int getType() {
+			return Container.COMPRESSION_NONE;
+		}
+
+		@Override
+		public String getName() {
+			return "none";
+		}
+
+		@Override
+		public int[] getLevels() {
+			return new int[] { 0 };
+		}
+
+		@Override
+		public byte[] compress(byte[] bytes, int level) {
+			checkLevel(this, level);
+			return bytes;
+		}
+
+		@Override
+		public void decompress(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+			if (buffer.remaining() != uncompressed.length)
+				throw new IOException("Length mismatch. [ " + buffer.remaining() + ", " + uncompressed.length + " ]");
+
+			buffer.duplicate().get(uncompressed);
+		}
+
+	}
+
+	/**
+	 * The BZIP2 codec. The client always uncompresses with a 100 KB block
+	 * size, so that is the only level.
+	 */
+	private static final class Bzip2Codec implements CompressionCodec {
+
+		@Override
+		public int getType() {
+			return Container.COMPRESSION_BZIP2;
+		}
+
+		@Override
+		public String getName() {
+			return "bzip2";
+		}
+
+		@Override
+		public int[] getLevels() {
+			return new int[] { 1 };
+		}
+
+		@Override
+		public byte[] compress(byte[] bytes, int level) throws IOException {
+			checkLevel(this, level);
+			return Bzip2Compressor.compress(bytes);
+		}
+
+		@Override
+		public void decompress(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+			CompressionUtils.bunzip2(buffer, uncompressed);
+		}
+
+	}
+
+	/**
+	 * The GZIP codec, with the nine deflate levels.
+	 */
+	private static final class GzipCodec implements CompressionCodec {
+
+		@Override
+		public int getType() {
+			return Container.COMPRESSION_GZIP;
+		}
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public int[] getLevels() {
+			return new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+		}
+
+		@Override
+		public byte[] compress(byte[] bytes, int level) throws IOException {
+			checkLevel(this, level);
+			return CompressionUtils.gzip(bytes, level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level);
+		}
+
+		@Override
+		public void decompress(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+			CompressionUtils.gunzip(buffer, uncompressed);
+		}
+
+	}
+
+	/**
+	 * The codecs, indexed by compression type.
+	 */
+	private static final AtomicReferenceArray<CompressionCodec> codecs = new AtomicReferenceArray<>(256);
+
+	static {
+		register(new NoneCodec());
+		register(new Bzip2Codec());
+		register(new GzipCodec());
+	}
+
+	/**
+	 * Registers a codec, replacing any codec of the same type.
+	 * 
+	 * @param codec
+	 *            The codec.
+	 * @throws IllegalArgumentException
+	 *             if the type does not fit in a byte.
+	 */
+	public static void register(CompressionCodec codec) {
+		int type = codec.getType();
+		if (type < 0 || type >= codecs.length())
+			throw new IllegalArgumentException("Compression type out of range: " + type);
+
+		codecs.set(type, codec);
+	}
+
+	/**
+	 * Gets the codec of a compression type.
+	 * 
+	 * @param type
+	 *            The compression type.
+	 * @return The codec, or {@code null} if there is none.
+	 */
+	public static CompressionCodec get(int type) {
+		return type < 0 || type >= codecs.length() ? null : codecs.get(type);
+	}
+
+	/**
+	 * Gets every registered codec, in order of compression type.
+	 * 
+	 * @return The codecs.
+	 */
+	public static List<CompressionCodec> getCodecs() {
+		List<CompressionCodec> list = new ArrayList<>();
+		for (int type = 0; type < codecs.length(); type++) {
+			CompressionCodec codec = codecs.get(type);
+			if (codec != null)
+				list.add(codec);
+		}
+		return list;
+	}
+
+	/**
+	 * Checks that a codec supports a level.
+	 * 
+	 * @param codec
+	 *            The codec.
+	 * @param level
+	 *            The level.
+	 * @throws IllegalArgumentException
+	 *             if the level is not supported.
+	 */
+	private static void checkLevel(CompressionCodec codec, int level) {
+		if (level == CompressionCodec.DEFAULT_LEVEL)
+			return;
+
+		for (int supported : codec.getLevels()) {
+			if (supported == level)
+				return;
+		}
+		throw new IllegalArgumentException("Unsupported " + codec.getName() + " level: " + level);
+	}
+
+	/**
+	 * Default private constructor to prevent instantiation.
+	 */
+	private CompressionCodecs() {
+
+	}
+
+}
@@ -26,10 +26,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import org.apache.tools.bzip2.CBZip2InputStream;
 import org.apache.tools.bzip2.CBZip2OutputStream;
 
 /**
@@ -42,40 +45,225 @@ import org.apache.tools.bzip2.CBZip2OutputStream;
 public final class CompressionUtils {
 
 	/**
-	 * Uncompresses a BZIP2 file.
+	 * The GZIP flag indicating an extra field is present.
+	 */
+	private static final int GZIP_FEXTRA = 4;
+
+	/**
+	 * The GZIP flag indicating a file name is present.
+	 */
+	private static final int GZIP_FNAME = 8;
+
+	/**
+	 * The GZIP flag indicating a comment is present.
+	 */
+	private static final int GZIP_FCOMMENT = 16;
+
+	/**
+	 * The GZIP flag indicating a header checksum is present.
+	 */
+	private static final int GZIP_FHCRC = 2;
+
+	/**
+	 * The size of the GZIP header written by {@link #gzip(byte[])}.
+	 */
+	private static final int GZIP_HEADER_SIZE = 10;
+
+	/**
+	 * The size of the GZIP trailer, holding the CRC and the uncompressed size.
+	 */
+	private static final int GZIP_TRAILER_SIZE = 8;
+
+	/**
+	 * The per-thread raw inflater. Inflaters hold native memory which is only
+	 * released when they are ended or finalized, so each thread reuses one
+	 * instead of creating one per file.
+	 */
+	private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * The per-thread raw deflater, reused for the same reason as
+	 * {@link #inflater}.
+	 */
+	private static final ThreadLocal<Deflater> deflater = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	/**
+	 * The per-thread array files are deflated into before being copied out at
+	 * their exact size. Larger files are deflated into an array of their own,
+	 * so a thread never keeps more than {@link #MAX_DEFLATE_BUFFER} bytes.
+	 */
+	private static final ThreadLocal<byte[]> deflateBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	/**
+	 * The largest array kept in {@link #deflateBuffer}.
+	 */
+	private static final int MAX_DEFLATE_BUFFER = 1024 * 1024;
+
+	/**
+	 * An empty array, given to the reused inflaters and deflaters once they
+	 * are done so that they do not hold on to the caller's last array.
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Uncompresses a BZIP2 file into an array which is exactly the size of
+	 * the uncompressed data. The compressed bytes are decoded straight out of
+	 * the buffer's backing array when it has one, see
+	 * {@link Bzip2Decompressor}.
 	 * 
-	 * @param bytes
-	 *            The compressed bytes without the header.
-	 * @return The uncompressed bytes.
+	 * @param buffer
+	 *            The compressed bytes without the header, from the position
+	 *            to the limit of the buffer. The position is left untouched.
+	 * @param uncompressed
+	 *            The array to uncompress into.
 	 * @throws IOException
-	 *             if an I/O error occurs.
+	 *             if an I/O error occurs, or if the uncompressed data is not
+	 *             exactly the size of the array.
 	 */
-	public static byte[] bunzip2(byte[] bytes) throws IOException {
-		/* prepare a new byte array with the bzip2 header at the start */
-		byte[] bzip2 = new byte[bytes.length + 2];
-		bzip2[0] = 'h';
-		bzip2[1] = '1';
-		System.arraycopy(bytes, 0, bzip2, 2, bytes.length);
+	public static void bunzip2(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+		Bzip2Decompressor.decompress(buffer, uncompressed);
+	}
+
+	/**
+	 * Uncompresses a GZIP file into an array which is exactly the size of the
+	 * uncompressed data. The compressed bytes are inflated straight out of the
+	 * buffer's backing array when it has one.
+	 * 
+	 * @param buffer
+	 *            The compressed bytes, from the position to the limit of the
+	 *            buffer. The position is left untouched.
+	 * @param uncompressed
+	 *            The array to uncompress into.
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the uncompressed data is not
+	 *             exactly the size of the array.
+	 */
+	public static void gunzip(ByteBuffer buffer, byte[] uncompressed) throws IOException {
+		byte[] bytes;
+		int off, len = buffer.remaining();
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			off = buffer.arrayOffset() + buffer.position();
+		} else {
+			bytes = new byte[len];
+			buffer.duplicate().get(bytes);
+			off = 0;
+		}
+
+		int header = getGzipHeaderSize(bytes, off, len);
 
-		InputStream is = new CBZip2InputStream(new ByteArrayInputStream(bzip2));
+		Inflater inflater = CompressionUtils.inflater.get();
+		inflater.reset();
 		try {
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			try {
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
-				}
-			} finally {
-				os.close();
+			inflater.setInput(bytes, off + header, len - header);
+
+			int inflated = 0;
+			while (inflated < uncompressed.length && !inflater.finished()) {
+				int n = inflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Unexpected end of GZIP data.");
+
+				inflated += n;
 			}
 
-			return os.toByteArray();
+			/* make sure there is nothing left over */
+			if (inflated == uncompressed.length && !inflater.finished()
+					&& inflater.inflate(new byte[1]) != 0)
+				throw new IOException("Length mismatch. [ > " + uncompressed.length + ", " + uncompressed.length + " ]");
+
+			if (inflated != uncompressed.length || !inflater.finished())
+				throw new IOException("Length mismatch. [ " + inflated + ", " + uncompressed.length + " ]");
+
+			/* check the trailer */
+			int trailer = off + len - inflater.getRemaining();
+			if (inflater.getRemaining() < GZIP_TRAILER_SIZE)
+				throw new IOException("Unexpected end of GZIP data.");
+
+			CRC32 crc = new CRC32();
+			crc.update(uncompressed, 0, uncompressed.length);
+			if (getIntLE(bytes, trailer) != (int) crc.getValue())
+				throw new IOException("GZIP CRC mismatch.");
+
+			if (getIntLE(bytes, trailer + 4) != uncompressed.length)
+				throw new IOException("GZIP size mismatch.");
+		} catch (DataFormatException ex) {
+			throw new IOException(ex);
 		} finally {
-			is.close();
+			inflater.setInput(EMPTY);
 		}
 	}
 
+	/**
+	 * Gets the size of a GZIP header.
+	 * 
+	 * @param bytes
+	 *            The array holding the GZIP file.
+	 * @param off
+	 *            The offset of the GZIP file within the array.
+	 * @param len
+	 *            The length of the GZIP file.
+	 * @return The size of the header.
+	 * @throws IOException
+	 *             if the header is malformed.
+	 */
+	private static int getGzipHeaderSize(byte[] bytes, int off, int len) throws IOException {
+		if (len < 10 || (bytes[off] & 0xFF) != 0x1F || (bytes[off + 1] & 0xFF) != 0x8B || bytes[off + 2] != 8)
+			throw new IOException("Not in GZIP format.");
+
+		int flags = bytes[off + 3] & 0xFF;
+		int pos = 10;
+
+		if ((flags & GZIP_FEXTRA) != 0) {
+			if (pos + 2 > len)
+				throw new IOException("Unexpected end of GZIP header.");
+			pos += 2 + ((bytes[off + pos] & 0xFF) | (bytes[off + pos + 1] & 0xFF) << 8);
+		}
+
+		for (int flag : new int[] { GZIP_FNAME, GZIP_FCOMMENT }) {
+			if ((flags & flag) != 0) {
+				while (pos < len && bytes[off + pos] != 0)
+					pos++;
+				pos++;
+			}
+		}
+
+		if ((flags & GZIP_FHCRC) != 0)
+			pos += 2;
+
+		if (pos > len)
+			throw new IOException("Unexpected end of GZIP header.");
+
+		return pos;
+	}
+
+	/**
+	 * Reads a little-endian integer from an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param off
+	 *            The offset of the integer.
+	 * @return The integer.
+	 */
+	private static int getIntLE(byte[] bytes, int off) {
+		return (bytes[off] & 0xFF) | (bytes[off + 1] & 0xFF) << 8 | (bytes[off + 2] & 0xFF) << 16
+				| (bytes[off + 3] & 0xFF) << 24;
+	}
+
+	/**
+	 * Uncompresses a BZIP2 file.
+	 * 
+	 * @param bytes
+	 *            The compressed bytes without the header.
+	 * @return The uncompressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static byte[] bunzip2(byte[] bytes) throws IOException {
+		return Bzip2Decompressor.decompress(bytes);
+	}
+
 	/**
 	 * Compresses a BZIP2 file.
 	 * 
@@ -111,7 +299,9 @@ public final class CompressionUtils {
 	}
 
 	/**
-	 * Uncompresses a GZIP file.
+	 * Uncompresses a GZIP file. The size of the uncompressed data is taken
+	 * from the GZIP trailer, so the result is allocated once at its exact
+	 * size.
 	 * 
 	 * @param bytes
 	 *            The compressed bytes.
@@ -120,30 +310,20 @@ public final class CompressionUtils {
 	 *             if an I/O error occurs.
 	 */
 	public static byte[] gunzip(byte[] bytes) throws IOException {
-		/* create the streams */
-		InputStream is = new GZIPInputStream(new ByteArrayInputStream(bytes));
-		try {
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			try {
-				/* copy data between the streams */
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
-				}
-			} finally {
-				os.close();
-			}
+		if (bytes.length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE)
+			throw new IOException("Not in GZIP format.");
 
-			/* return the uncompressed bytes */
-			return os.toByteArray();
-		} finally {
-			is.close();
-		}
+		int size = getIntLE(bytes, bytes.length - 4);
+		if (size < 0)
+			throw new IOException("GZIP file too large.");
+
+		byte[] uncompressed = new byte[size];
+		gunzip(ByteBuffer.wrap(bytes), uncompressed);
+		return uncompressed;
 	}
 
 	/**
-	 * Compresses a GZIP file.
+	 * Compresses a GZIP file at the default level.
 	 * 
 	 * @param bytes
 	 *            The uncompressed bytes.
@@ -152,27 +332,81 @@ public final class CompressionUtils {
 	 *             if an I/O error occurs.
 	 */
 	public static byte[] gzip(byte[] bytes) throws IOException {
-		/* create the streams */
-		InputStream is = new ByteArrayInputStream(bytes);
+		return gzip(bytes, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Compresses a GZIP file. The header and trailer are written by hand
+	 * around the output of a reused raw deflater.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @param level
+	 *            The deflate level, from {@code 0} to {@code 9}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @return The compressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static byte[] gzip(byte[] bytes, int level) throws IOException {
+		Deflater deflater = CompressionUtils.deflater.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(bytes);
+		deflater.finish();
+
+		/* deflate leaves stored blocks only slightly larger than the input */
+		byte[] out = deflateBuffer.get();
+		int bound = GZIP_HEADER_SIZE + bytes.length + (bytes.length >> 12) * 5 + 64 + GZIP_TRAILER_SIZE;
+		if (out.length < bound) {
+			out = new byte[bound];
+			if (bound <= MAX_DEFLATE_BUFFER)
+				deflateBuffer.set(out);
+		}
+
+		/* the same header GZIPOutputStream writes */
+		out[0] = 0x1F;
+		out[1] = (byte) 0x8B;
+		out[2] = Deflater.DEFLATED;
+		Arrays.fill(out, 3, GZIP_HEADER_SIZE, (byte) 0);
+
+		int pos = GZIP_HEADER_SIZE;
 		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			OutputStream os = new GZIPOutputStream(bout);
-			try {
-				/* copy data between the streams */
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
+			while (!deflater.finished()) {
+				if (pos + GZIP_TRAILER_SIZE >= out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+					if (out.length <= MAX_DEFLATE_BUFFER)
+						deflateBuffer.set(out);
 				}
-			} finally {
-				os.close();
+				pos += deflater.deflate(out, pos, out.length - pos - GZIP_TRAILER_SIZE);
 			}
-
-			/* return the compressed bytes */
-			return bout.toByteArray();
 		} finally {
-			is.close();
+			deflater.setInput(EMPTY);
 		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		putIntLE(out, pos, (int) crc.getValue());
+		putIntLE(out, pos + 4, bytes.length);
+
+		return Arrays.copyOf(out, pos + GZIP_TRAILER_SIZE);
+	}
+
+	/**
+	 * Writes a little-endian integer to an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param off
+	 *            The offset of the integer.
+	 * @param value
+	 *            The integer.
+	 */
+	private static void putIntLE(byte[] bytes, int off, int value) {
+		bytes[off] = (byte) value;
+		bytes[off + 1] = (byte) (value >> 8);
+		bytes[off + 2] = (byte) (value >> 16);
+		bytes[off + 3] = (byte) (value >> 24);
 	}
 
 	/**
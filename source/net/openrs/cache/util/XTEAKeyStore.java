@@ -0,0 +1,391 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only set of XTEA keys in a single binary file, memory-mapped and
+ * looked up by id with a binary search, so opening it costs nothing however
+ * many keys it holds. The file is a magic number and a count, followed by
+ * that many 20-byte records of an id and four keys, sorted by id.
+ * <p />
+ * Keys can be imported from the directories of {@code <id>.txt} files with
+ * one key per line, and from JSON dumps which are either an array of objects
+ * such as <code>{"region": 12850, "keys": [1, 2, 3, 4]}</code> or an object
+ * such as <code>{"12850": [1, 2, 3, 4]}</code>.
+ */
+public final class XTEAKeyStore {
+
+	/**
+	 * The logger for this class.
+	 */
+	private static final Logger logger = Logger.getLogger(XTEAKeyStore.class.getName());
+
+	/**
+	 * The magic number at the start of a key store, {@code "XTEA"}.
+	 */
+	private static final int MAGIC = 0x58544541;
+
+	/**
+	 * The size of the header.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The size of a record.
+	 */
+	private static final int RECORD_SIZE = 20;
+
+	/**
+	 * The names of the id field of the objects in JSON dumps.
+	 */
+	private static final Pattern JSON_ID = Pattern.compile("\"(?:region|regionId|mapsquare|id)\"\\s*:\\s*(-?\\d+)");
+
+	/**
+	 * The names of the keys field of the objects in JSON dumps.
+	 */
+	private static final Pattern JSON_KEYS = Pattern.compile("\"(?:keys|key|xtea|xteas)\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+	/**
+	 * An object in a JSON dump.
+	 */
+	private static final Pattern JSON_OBJECT = Pattern.compile("\\{([^{}]*)\\}");
+
+	/**
+	 * An entry of a JSON dump which maps ids to keys.
+	 */
+	private static final Pattern JSON_ENTRY = Pattern.compile("\"(-?\\d+)\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+	/**
+	 * Opens a key store by mapping it into memory.
+	 * 
+	 * @param path
+	 *            The path of the key store.
+	 * @return The key store.
+	 * @throws IOException
+	 *             if an I/O error occurs or the file is not a key store.
+	 */
+	public static XTEAKeyStore open(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not an XTEA key store.");
+
+		int size = buffer.getInt(4);
+		if (size < 0 || buffer.limit() != HEADER_SIZE + (long) size * RECORD_SIZE)
+			throw new IOException("Truncated XTEA key store.");
+
+		return new XTEAKeyStore(buffer);
+	}
+
+	/**
+	 * Creates a key store in memory.
+	 * 
+	 * @param keys
+	 *            The keys, by id.
+	 * @return The key store.
+	 */
+	public static XTEAKeyStore wrap(Map<Integer, int[]> keys) {
+		return new XTEAKeyStore(encode(keys));
+	}
+
+	/**
+	 * Writes a key store. The file is replaced in one step, so a store which
+	 * is mapped by another process is never seen half written.
+	 * 
+	 * @param path
+	 *            The path of the key store.
+	 * @param keys
+	 *            The keys, by id.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static void write(Path path, Map<Integer, int[]> keys) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = encode(keys);
+			while (buf.hasRemaining())
+				channel.write(buf);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Encodes keys into the key store format.
+	 * 
+	 * @param keys
+	 *            The keys, by id.
+	 * @return The encoded key store.
+	 */
+	private static ByteBuffer encode(Map<Integer, int[]> keys) {
+		SortedMap<Integer, int[]> sorted = keys instanceof SortedMap ? (SortedMap<Integer, int[]>) keys
+				: new TreeMap<>(keys);
+
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * RECORD_SIZE);
+		buf.putInt(MAGIC);
+		buf.putInt(sorted.size());
+		for (Map.Entry<Integer, int[]> entry : sorted.entrySet()) {
+			int[] key = entry.getValue();
+			if (key.length != 4)
+				throw new IllegalArgumentException("Keys for " + entry.getKey() + " are not four ints.");
+
+			buf.putInt(entry.getKey());
+			for (int k : key)
+				buf.putInt(k);
+		}
+		return (ByteBuffer) buf.flip();
+	}
+
+	/**
+	 * Reads a directory of {@code <id>.txt} files, each holding four keys on
+	 * separate lines. Lines after the fourth key are ignored. A file which is
+	 * not named after an id, or does not start with four keys, is skipped
+	 * with a warning so that it does not cost the keys in the other files.
+	 * 
+	 * @param dir
+	 *            The directory.
+	 * @return The keys, by id.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static SortedMap<Integer, int[]> readText(Path dir) throws IOException {
+		SortedMap<Integer, int[]> keys = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.txt")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					int id = Integer.parseInt(name.substring(0, name.length() - ".txt".length()));
+
+					int[] key = new int[4];
+					int count = 0;
+					for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+						line = line.trim();
+						if (line.isEmpty())
+							continue;
+
+						key[count++] = Integer.parseInt(line);
+						if (count == key.length)
+							break;
+					}
+
+					if (count != key.length) {
+						logger.warning("Skipping " + file + ", it holds fewer than four keys.");
+						continue;
+					}
+
+					keys.put(id, key);
+				} catch (NumberFormatException ex) {
+					logger.warning("Skipping " + file + ", it is malformed: " + ex.getMessage());
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads a JSON dump of keys, either an array of objects with an id field
+	 * ({@code region}, {@code regionId}, {@code mapsquare} or {@code id}) and
+	 * a keys field ({@code keys}, {@code key}, {@code xtea} or
+	 * {@code xteas}), or an object mapping ids to arrays of keys.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The keys, by id.
+	 * @throws IOException
+	 *             if an I/O error occurs or the dump is malformed.
+	 */
+	public static SortedMap<Integer, int[]> readJson(Path file) throws IOException {
+		String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+		SortedMap<Integer, int[]> keys = new TreeMap<>();
+
+		try {
+			if (json.startsWith("[")) {
+				Matcher object = JSON_OBJECT.matcher(json);
+				while (object.find()) {
+					Matcher id = JSON_ID.matcher(object.group(1));
+					Matcher key = JSON_KEYS.matcher(object.group(1));
+					if (!id.find() || !key.find())
+						throw new IOException("Missing id or keys in " + object.group() + ".");
+
+					keys.put(Integer.parseInt(id.group(1)), parseKeys(key.group(1)));
+				}
+			} else {
+				Matcher entry = JSON_ENTRY.matcher(json);
+				while (entry.find())
+					keys.put(Integer.parseInt(entry.group(1)), parseKeys(entry.group(2)));
+			}
+		} catch (NumberFormatException ex) {
+			throw new IOException(ex);
+		}
+		return keys;
+	}
+
+	/**
+	 * Parses the body of a JSON array of four keys.
+	 * 
+	 * @param array
+	 *            The text between the brackets.
+	 * @return The keys.
+	 * @throws IOException
+	 *             if there are not four keys.
+	 */
+	private static int[] parseKeys(String array) throws IOException {
+		String[] values = array.split(",");
+		if (values.length != 4)
+			throw new IOException("Expected four keys but got [" + array + "].");
+
+		int[] key = new int[4];
+		for (int i = 0; i < key.length; i++)
+			key[i] = Integer.parseInt(values[i].trim());
+		return key;
+	}
+
+	/**
+	 * The encoded key store.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The number of ids in this key store.
+	 */
+	private final int size;
+
+	/**
+	 * Creates a key store from its encoded form.
+	 * 
+	 * @param buffer
+	 *            The encoded key store.
+	 */
+	private XTEAKeyStore(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.size = buffer.getInt(4);
+	}
+
+	/**
+	 * Gets the number of ids in this key store.
+	 * 
+	 * @return The number of ids.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the id at an index, in ascending order.
+	 * 
+	 * @param index
+	 *            The index.
+	 * @return The id.
+	 */
+	public int getId(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException();
+
+		return buffer.getInt(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	/**
+	 * Checks if this key store has keys for an id.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean contains(int id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * Gets the keys for an id.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The keys, or {@code null} if there are none.
+	 */
+	public int[] lookup(int id) {
+		int[] keys = new int[4];
+		return lookup(id, keys) ? keys : null;
+	}
+
+	/**
+	 * Copies the keys for an id into an array, without allocating.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @param keys
+	 *            The array of at least four ints to copy the keys into.
+	 * @return {@code true} if there were keys, {@code false} if not.
+	 */
+	public boolean lookup(int id, int[] keys) {
+		int index = indexOf(id);
+		if (index < 0)
+			return false;
+
+		int offset = HEADER_SIZE + index * RECORD_SIZE + 4;
+		for (int i = 0; i < 4; i++)
+			keys[i] = buffer.getInt(offset + i * 4);
+		return true;
+	}
+
+	/**
+	 * Finds the index of an id with a binary search.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The index, or {@code -1} if there is no such id.
+	 */
+	private int indexOf(int id) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int value = buffer.getInt(HEADER_SIZE + middle * RECORD_SIZE);
+			if (value < id)
+				low = middle + 1;
+			else if (value > id)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Container;
+import net.openrs.cache.type.CacheIndex;
+import net.openrs.util.crypto.Xtea;
+
+/**
+ * Finds which of several candidate XTEA keys decrypt each region's landscape
+ * file. A key is first checked cheaply by deciphering only the first block
+ * of the container, which must hold a sane uncompressed length and the start
+ * of a BZIP2 or GZIP stream, and optionally confirmed by decoding the whole
+ * container. Regions are checked in parallel.
+ */
+public final class XTEAKeyValidator {
+
+	/**
+	 * The name of the candidate for files which are not encrypted at all.
+	 */
+	public static final String UNENCRYPTED = "none";
+
+	/**
+	 * How far a candidate key got.
+	 */
+	public enum Status {
+
+		/**
+		 * The landscape file could not be read, so the key was not checked.
+		 */
+		UNREADABLE,
+
+		/**
+		 * The key does not decrypt the file.
+		 */
+		INVALID,
+
+		/**
+		 * The first block decrypts to a plausible container.
+		 */
+		PLAUSIBLE,
+
+		/**
+		 * The whole container decrypts and decompresses.
+		 */
+		DECODED
+
+	}
+
+	/**
+	 * A candidate key for a region, and the sources which suggested it.
+	 */
+	public static final class Candidate {
+
+		/**
+		 * The keys.
+		 */
+		private final int[] keys;
+
+		/**
+		 * The names of the sources which suggested the keys, in priority
+		 * order.
+		 */
+		private final List<String> sources = new ArrayList<>();
+
+		/**
+		 * The index of the highest priority source which suggested the keys.
+		 */
+		private final int priority;
+
+		/**
+		 * How far the keys got.
+		 */
+		private Status status = Status.INVALID;
+
+		/**
+		 * Creates a new candidate.
+		 * 
+		 * @param keys
+		 *            The keys.
+		 * @param priority
+		 *            The index of the source which suggested the keys.
+		 */
+		private Candidate(int[] keys, int priority) {
+			this.keys = keys;
+			this.priority = priority;
+		}
+
+		/**
+		 * Gets the keys.
+		 * 
+		 * @return The keys.
+		 */
+		public int[] getKeys() {
+			return keys.clone();
+		}
+
+		/**
+		 * Gets the names of the sources which suggested the keys.
+		 * 
+		 * @return The sources, in priority order.
+		 */
+		public List<String> getSources() {
+			return Collections.unmodifiableList(sources);
+		}
+
+		/**
+		 * Gets how far the keys got.
+		 * 
+		 * @return The status.
+		 */
+		public Status getStatus() {
+			return status;
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + Arrays.toString(keys) + " from " + sources;
+		}
+
+	}
+
+	/**
+	 * The order candidates are ranked in: the furthest validated first, then
+	 * those suggested by the most sources, then by source priority.
+	 */
+	private static final Comparator<Candidate> RANKING = Comparator
+			.comparing((Candidate candidate) -> candidate.status).reversed()
+			.thenComparing(Comparator.comparingInt((Candidate candidate) -> candidate.sources.size()).reversed())
+			.thenComparingInt(candidate -> candidate.priority);
+
+	/**
+	 * Checks if a key plausibly decrypts a container by deciphering only its
+	 * first block. The compression type and length are never encrypted and
+	 * must match the size of the file, and the first block must hold a
+	 * non-negative uncompressed length followed by the magic number of the
+	 * compression type. Containers of other types have no magic number and
+	 * only have their length checked.
+	 * 
+	 * @param buffer
+	 *            The encrypted container, which is not modified.
+	 * @param keys
+	 *            The keys, or {@link XTEAManager#NULL_KEYS} if the container
+	 *            is not encrypted.
+	 * @return {@code true} if the key is plausible, {@code false} if it is
+	 *         certainly wrong.
+	 */
+	public static boolean check(ByteBuffer buffer, int[] keys) {
+		int start = buffer.position();
+		int size = buffer.limit() - start;
+		if (size < 5)
+			return false;
+
+		int type = buffer.get(start) & 0xFF;
+		int length = buffer.getInt(start + 1);
+		int header = type == Container.COMPRESSION_NONE ? 5 : 9;
+
+		/* the file is the header, the data and an optional version */
+		long trailer = (long) size - header - length;
+		if (length < 0 || (trailer != 0 && trailer != 2) || CompressionCodecs.get(type) == null)
+			return false;
+
+		if (type != Container.COMPRESSION_BZIP2 && type != Container.COMPRESSION_GZIP)
+			return true;
+
+		/* a stream too short to fill a block is not encrypted or recognisable */
+		if (length < 4)
+			return false;
+
+		int v0 = buffer.getInt(start + 5);
+		int v1 = buffer.getInt(start + 9);
+		long block = keys[0] == 0 && keys[1] == 0 && keys[2] == 0 && keys[3] == 0
+				? ((long) v0 << 32) | (v1 & 0xFFFFFFFFL) : Xtea.decipherBlock(v0, v1, keys);
+
+		int uncompressed = (int) (block >>> 32);
+		int magic = (int) block;
+		if (uncompressed < 0)
+			return false;
+
+		if (type == Container.COMPRESSION_BZIP2) {
+			/* the "BZh1" header is stripped, so the data starts with a block */
+			return magic == 0x31415926;
+		}
+
+		/* GZIP member header with the deflate method */
+		return (magic >>> 8) == 0x1F8B08;
+	}
+
+	/**
+	 * Checks if a key decrypts a container by decoding all of it.
+	 * 
+	 * @param buffer
+	 *            The encrypted container, which is not modified.
+	 * @param keys
+	 *            The keys.
+	 * @return {@code true} if the container decodes, {@code false} if not.
+	 */
+	public static boolean decode(ByteBuffer buffer, int[] keys) {
+		/* decryption happens in place, so work on a copy */
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate()).flip();
+
+		try {
+			Container.decode(copy, keys);
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * The cache to read the landscape files from.
+	 */
+	private final Cache cache;
+
+	/**
+	 * Creates a new validator.
+	 * 
+	 * @param cache
+	 *            The cache to read the landscape files from.
+	 */
+	public XTEAKeyValidator(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Ranks the candidate keys of every region with a landscape file. The
+	 * candidates are the distinct keys suggested by the sources, plus
+	 * {@link XTEAManager#NULL_KEYS} under the name {@link #UNENCRYPTED}, and
+	 * each is checked with {@link #check}. Plausible keys are confirmed with
+	 * {@link #decode} if asked. If the landscape file of a region cannot be
+	 * read, all of its candidates are {@link Status#UNREADABLE}.
+	 * 
+	 * @param sources
+	 *            The sources of keys by name, highest priority first. Each
+	 *            gives the keys for a region id, or {@code null} if it has
+	 *            none.
+	 * @param decode
+	 *            If plausible keys should be confirmed by decoding.
+	 * @return The candidates of each region, best first, by region id.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("unchecked")
+	public SortedMap<Integer, List<Candidate>> rank(Map<String, IntFunction<int[]>> sources, boolean decode)
+			throws IOException {
+		int type = CacheIndex.LANDSCAPES.getID();
+		int[] files = cache.getRegionFileIds(type, "l");
+
+		List<String> names = new ArrayList<>(sources.keySet());
+		List<IntFunction<int[]>> lookups = new ArrayList<>(sources.values());
+
+		List<Candidate>[] ranked = IntStream.range(0, files.length).parallel().mapToObj(region -> {
+			if (files[region] == -1)
+				return null;
+
+			ByteBuffer buffer;
+			try {
+				buffer = cache.getStore().read(type, files[region]);
+			} catch (IOException ex) {
+				/* a damaged file is reported with its region rather than ending the ranking */
+				buffer = null;
+			}
+
+			List<Candidate> candidates = new ArrayList<>();
+			for (int i = 0; i <= names.size(); i++) {
+				int[] keys = i < names.size() ? lookups.get(i).apply(region) : XTEAManager.NULL_KEYS;
+				if (keys == null || keys.length != 4)
+					continue;
+
+				Candidate candidate = null;
+				for (Candidate other : candidates) {
+					if (Arrays.equals(other.keys, keys))
+						candidate = other;
+				}
+				if (candidate == null) {
+					candidate = new Candidate(keys.clone(), i);
+					candidates.add(candidate);
+				}
+				candidate.sources.add(i < names.size() ? names.get(i) : UNENCRYPTED);
+			}
+
+			for (Candidate candidate : candidates) {
+				if (buffer == null) {
+					candidate.status = Status.UNREADABLE;
+				} else if (check(buffer, candidate.keys)) {
+					candidate.status = Status.PLAUSIBLE;
+					if (decode)
+						candidate.status = decode(buffer, candidate.keys) ? Status.DECODED : Status.INVALID;
+				}
+			}
+
+			candidates.sort(RANKING);
+			return candidates;
+		}).toArray(List[]::new);
+
+		SortedMap<Integer, List<Candidate>> regions = new TreeMap<>();
+		for (int region = 0; region < ranked.length; region++) {
+			if (ranked[region] != null)
+				regions.put(region, ranked[region]);
+		}
+		return regions;
+	}
+
+}
@@ -18,13 +18,16 @@
  */
 package net.openrs.cache.util;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
 import net.openrs.cache.Constants;
 
@@ -35,13 +38,15 @@ import net.openrs.cache.Constants;
  */
 public class XTEAManager {
 
-      private static final Map<Integer, int[]> maps = new HashMap<Integer, int[]>();
-      private static final Map<Integer, int[]> tables = new HashMap<Integer, int[]>();
+      private static final Logger logger = Logger.getLogger(XTEAManager.class.getName());
+
+      private static final XTEAKeyStore maps = load(Constants.XMAP_STORE_PATH, Constants.XMAP_PATH);
+      private static final XTEAKeyStore tables = load(Constants.XTABLE_STORE_PATH, Constants.XTABLE_PATH);
 
       public static final int[] NULL_KEYS = new int[4];
 
       public static final int[] lookupTable(int id) {
-            int[] keys = tables.get(id);
+            int[] keys = tables.lookup(id);
             if (keys == null)
                   return NULL_KEYS;
 
@@ -49,56 +54,65 @@ public class XTEAManager {
       }
 
       public static final int[] lookupMap(int id) {
-            int[] keys = maps.get(id);
+            int[] keys = maps.lookup(id);
             if (keys == null)
                   return NULL_KEYS;
 
             return keys;
       }
 
-      static {
+      /**
+       * Loads keys from a binary {@link XTEAKeyStore} if there is one, as
+       * written by {@link net.openrs.cache.tools.XTEAImporter}, and otherwise
+       * from a directory of text files. If the text files changed after the
+       * store was written, they are merged over it so that new keys are not
+       * ignored until the store is imported again.
+       */
+      private static XTEAKeyStore load(String storePath, String textPath) {
             try {
-
-                  File xMapDir = new File(Constants.XMAP_PATH);
-
-                  if (!xMapDir.exists()) {
-                        xMapDir.mkdirs();
+                  Path store = Paths.get(storePath);
+                  Path dir = Paths.get(textPath);
+                  if (!Files.exists(store)) {
+                        Files.createDirectories(dir);
+                        return XTEAKeyStore.wrap(XTEAKeyStore.readText(dir));
                   }
 
-                  for (File file : xMapDir.listFiles()) {
-                        if (file.getName().endsWith(".txt")) {
-                              Integer regionID = Integer.valueOf(file.getName().substring(0,
-                                          file.getName().indexOf(".txt")));
-
-                              int[] keys = Files.lines(Paths.get(".")
-                                          .resolve(Constants.XMAP_PATH + file.getName()))
-                                          .map(Integer::valueOf).mapToInt(Integer::intValue).toArray();
-
-                              maps.put(regionID, keys);
-                        }
+                  XTEAKeyStore keys = XTEAKeyStore.open(store);
+                  if (!Files.isDirectory(dir) || !isNewer(dir, Files.getLastModifiedTime(store))) {
+                        return keys;
                   }
 
-                  File xTableDir = new File(Constants.XTABLE_PATH);
-
-                  if (!xTableDir.exists()) {
-                        xTableDir.mkdirs();
+                  logger.warning(dir + " is newer than " + store + ", re-run XTEAImporter to update it.");
+                  Map<Integer, int[]> merged = new HashMap<>();
+                  for (int i = 0; i < keys.size(); i++) {
+                        int id = keys.getId(i);
+                        merged.put(id, keys.lookup(id));
                   }
+                  merged.putAll(XTEAKeyStore.readText(dir));
+                  return XTEAKeyStore.wrap(merged);
+            } catch (IOException e) {
+                  e.printStackTrace();
+                  return XTEAKeyStore.wrap(Collections.emptyMap());
+            }
+      }
 
-                  for (File file : xTableDir.listFiles()) {
-                        if (file.getName().endsWith(".txt")) {
-                              Integer typeID = Integer.valueOf(file.getName().substring(0,
-                                          file.getName().indexOf(".txt")));
-
-                              int[] keys = Files.lines(Paths.get(".")
-                                      .resolve(Constants.XTABLE_PATH + file.getName()))
-                                      .map(Integer::valueOf).mapToInt(Integer::intValue).toArray();
+      /**
+       * Checks if a directory of text files, or any of the files in it, was
+       * modified after the specified time.
+       */
+      private static boolean isNewer(Path dir, FileTime time) throws IOException {
+            if (Files.getLastModifiedTime(dir).compareTo(time) > 0) {
+                  return true;
+            }
 
-                              tables.put(typeID, keys);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.txt")) {
+                  for (Path file : files) {
+                        if (Files.getLastModifiedTime(file).compareTo(time) > 0) {
+                              return true;
                         }
                   }
-            } catch (Exception e) {
-                  e.printStackTrace();
             }
+            return false;
       }
       
       public static void touch() { };
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s, bucketed by power-of-two capacity.
+ * Pools are safe to share between threads.
+ */
+public final class ByteBufferPool {
+
+	/**
+	 * The smallest capacity handed out by a pool, as a power of two.
+	 */
+	private static final int MIN_SHIFT = 10;
+
+	/**
+	 * The number of buckets, covering capacities from 1 KB up to 1 GB.
+	 */
+	private static final int BUCKETS = 31 - MIN_SHIFT;
+
+	/**
+	 * A flag indicating if this pool hands out direct buffers.
+	 */
+	private final boolean direct;
+
+	/**
+	 * The maximum number of idle buffers kept in each bucket.
+	 */
+	private final int maxIdle;
+
+	/**
+	 * The idle buffers, indexed by bucket.
+	 */
+	private final Deque<ByteBuffer>[] buckets;
+
+	/**
+	 * Creates a new pool of heap buffers.
+	 */
+	public ByteBufferPool() {
+		this(false, 16);
+	}
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param direct
+	 *            A flag indicating if the pool should hand out direct buffers.
+	 * @param maxIdle
+	 *            The maximum number of idle buffers kept for each capacity.
+	 */
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool(boolean direct, int maxIdle) {
+		this.direct = direct;
+		this.maxIdle = maxIdle;
+		this.buckets = (Deque<ByteBuffer>[]) new Deque<?>[BUCKETS];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new ArrayDeque<ByteBuffer>();
+	}
+
+	/**
+	 * Acquires a buffer which can hold at least the specified number of bytes.
+	 * The position of the buffer is zero and its limit is {@code size}.
+	 *
+	 * @param size
+	 *            The number of bytes required.
+	 * @return The buffer.
+	 */
+	public ByteBuffer acquire(int size) {
+		int bucket = bucket(size);
+		if (bucket >= BUCKETS)
+			return allocate(size);
+
+		ByteBuffer buffer;
+		Deque<ByteBuffer> idle = buckets[bucket];
+		synchronized (idle) {
+			buffer = idle.pollFirst();
+		}
+
+		if (buffer == null)
+			buffer = allocate(1 << (bucket + MIN_SHIFT));
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back to this pool. The buffer must not be used by the
+	 * caller afterwards.
+	 *
+	 * @param buffer
+	 *            The buffer.
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (buffer.isDirect() != direct || buffer.isReadOnly() || Integer.bitCount(capacity) != 1)
+			return;
+
+		int bucket = bucket(capacity);
+		if (bucket >= BUCKETS || capacity != 1 << (bucket + MIN_SHIFT))
+			return;
+
+		Deque<ByteBuffer> idle = buckets[bucket];
+		synchronized (idle) {
+			if (idle.size() < maxIdle)
+				idle.offerFirst(buffer);
+		}
+	}
+
+	/**
+	 * Allocates a new buffer.
+	 *
+	 * @param capacity
+	 *            The capacity of the buffer.
+	 * @return The buffer.
+	 */
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Gets the bucket which holds buffers large enough for the specified size.
+	 *
+	 * @param size
+	 *            The size.
+	 * @return The bucket.
+	 */
+	private static int bucket(int size) {
+		if (size <= 1 << MIN_SHIFT)
+			return 0;
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+}
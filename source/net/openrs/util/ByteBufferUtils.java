@@ -24,7 +24,6 @@ package net.openrs.util;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
 import net.openrs.util.crypto.Whirlpool;
 
@@ -52,10 +51,11 @@ public final class ByteBufferUtils {
 	 * @return The CRC32 checksum.
 	 */
 	public static int getCrcChecksum(ByteBuffer buffer) {
-		Checksum crc = new CRC32();
-		for (int i = 0; i < buffer.limit(); i++) {
-			crc.update(buffer.get(i));
-		}
+		ByteBuffer view = buffer.duplicate();
+		view.position(0);
+
+		CRC32 crc = new CRC32();
+		crc.update(view);
 		return (int) crc.getValue();
 	}
 
@@ -193,16 +193,29 @@ public final class ByteBufferUtils {
 	}
 
 	/**
-	 * Calculates the whirlpool digest of the specified buffer.
+	 * Reads a 'tri-byte' from the specified index of the buffer, without
+	 * changing its position.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 * @param index
+	 *            The index.
+	 * @return The value.
+	 */
+	public static int getMedium(ByteBuffer buf, int index) {
+		return ((buf.get(index) & 0xFF) << 16) | ((buf.get(index + 1) & 0xFF) << 8) | (buf.get(index + 2) & 0xFF);
+	}
+
+	/**
+	 * Calculates the whirlpool digest of the remaining bytes of the specified
+	 * buffer, advancing its position to the limit.
 	 * 
 	 * @param buf
 	 *            The buffer.
 	 * @return The 64-byte whirlpool digest.
 	 */
 	public static byte[] getWhirlpoolDigest(ByteBuffer buf) {
-		byte[] bytes = new byte[buf.limit()];
-		buf.get(bytes);
-		return Whirlpool.whirlpool(bytes, 0, bytes.length);
+		return Whirlpool.whirlpool(buf);
 	}
 
 	/**
@@ -49,7 +49,7 @@ public final class FileChannelUtils {
 	public static void readFully(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
 		while (buffer.remaining() > 0) {
 			long read = channel.read(buffer, ptr);
-			if (read < -1) {
+			if (read == -1) {
 				throw new EOFException();
 			} else {
 				ptr += read;
@@ -57,6 +57,38 @@ public final class FileChannelUtils {
 		}
 	}
 
+	/**
+	 * Reads from the channel into the buffer until at least the specified
+	 * number of bytes have been read, or the buffer is full. Unlike
+	 * {@link #readFully}, reaching the end of the channel after that is not
+	 * an error.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @param buffer
+	 *            The buffer.
+	 * @param ptr
+	 *            The initial position in the channel.
+	 * @param min
+	 *            The minimum number of bytes to read.
+	 * @return The number of bytes read.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static int readAtLeast(FileChannel channel, ByteBuffer buffer, long ptr, int min) throws IOException {
+		int total = 0;
+		while (buffer.remaining() > 0) {
+			int read = channel.read(buffer, ptr + total);
+			if (read == -1) {
+				if (total < min)
+					throw new EOFException();
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
 	/**
 	 * Default private constructor to prevent instantiation.
 	 */
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only view of a {@link FileChannel} made up of several memory-mapped
+ * windows. The size of each window is a multiple of the record size, so a
+ * single record never straddles two windows.
+ * <p />
+ * Writes must still go through the channel. Windows are remapped lazily when
+ * a read goes past the end of the currently mapped region.
+ */
+public final class MappedFile {
+
+	/**
+	 * The maximum size of a single window, in bytes.
+	 */
+	private static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The channel this file maps.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The size of each window, in bytes.
+	 */
+	private final int windowSize;
+
+	/**
+	 * The mapped windows.
+	 */
+	private volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+
+	/**
+	 * The number of bytes currently mapped.
+	 */
+	private volatile long mapped;
+
+	/**
+	 * Creates a new mapped file.
+	 *
+	 * @param channel
+	 *            The channel to map.
+	 * @param recordSize
+	 *            The size of a single record within the file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public MappedFile(FileChannel channel, int recordSize) throws IOException {
+		this.channel = channel;
+		this.windowSize = (MAX_WINDOW_SIZE / recordSize) * recordSize;
+		remap();
+	}
+
+	/**
+	 * Gets the size of the underlying file.
+	 *
+	 * @return The size in bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Gets the window containing the specified position. The returned buffer
+	 * is shared and must only be accessed with absolute get methods, or
+	 * duplicated first.
+	 *
+	 * @param ptr
+	 *            The position within the file.
+	 * @param length
+	 *            The number of bytes which must be readable at {@code ptr}.
+	 * @return The window.
+	 * @throws IOException
+	 *             if the range lies outside of the file.
+	 */
+	public ByteBuffer window(long ptr, int length) throws IOException {
+		if (ptr + length > mapped)
+			remap();
+
+		if (ptr < 0 || ptr + length > mapped)
+			throw new EOFException();
+
+		return windows[(int) (ptr / windowSize)];
+	}
+
+	/**
+	 * Gets the offset of the specified position within its window.
+	 *
+	 * @param ptr
+	 *            The position within the file.
+	 * @return The offset within the window.
+	 */
+	public int offset(long ptr) {
+		return (int) (ptr % windowSize);
+	}
+
+	/**
+	 * Copies bytes starting at the specified position into the buffer, until
+	 * the buffer is full.
+	 *
+	 * @param ptr
+	 *            The position within the file.
+	 * @param dst
+	 *            The destination buffer.
+	 * @throws IOException
+	 *             if the range lies outside of the file.
+	 */
+	public void read(long ptr, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int offset = offset(ptr);
+			int length = Math.min(dst.remaining(), windowSize - offset);
+
+			ByteBuffer src = window(ptr, length).duplicate();
+			src.position(offset);
+			src.limit(offset + length);
+			dst.put(src);
+
+			ptr += length;
+		}
+	}
+
+	/**
+	 * Maps any part of the file which is not yet mapped, remapping the last
+	 * window if the file has grown since it was mapped.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private synchronized void remap() throws IOException {
+		long size = channel.size();
+		if (size <= mapped)
+			return;
+
+		int count = (int) ((size + windowSize - 1) / windowSize);
+		MappedByteBuffer[] windows = new MappedByteBuffer[count];
+
+		/* keep the windows which are already completely mapped */
+		int full = (int) (mapped / windowSize);
+		System.arraycopy(this.windows, 0, windows, 0, full);
+
+		for (int i = full; i < count; i++) {
+			long start = (long) i * windowSize;
+			windows[i] = channel.map(MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+		}
+
+		this.windows = windows;
+		this.mapped = size;
+	}
+
+}
@@ -24,6 +24,12 @@ package net.openrs.util.crypto;
  *
  * =============================================================================
  *
+ * This implementation keeps the hashing state and round keys in locals, uses
+ * one table per circulant rotation and only hashes whole bytes. Instances can
+ * be reused after each digest and allocate nothing while hashing.
+ *
+ * =============================================================================
+ *
  * Differences from version 2.1:
  *
  * - Suboptimal diffusion matrix replaced by cir(1, 1, 4, 1, 8, 5, 2, 9).
@@ -57,7 +63,8 @@ package net.openrs.util.crypto;
  *
  */
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class Whirlpool {
 
@@ -74,7 +81,7 @@ public class Whirlpool {
 	/**
 	 * The number of rounds of the internal dedicated block cipher.
 	 */
-	protected static final int R = 10;
+	private static final int R = 10;
 
 	/**
 	 * The substitution box.
@@ -89,8 +96,16 @@ public class Whirlpool {
 			+ "\u3c81\u94F7\uB913\u2cd3\uE76E\uc403\u5644\u7FA9" + "\u2ABB\uc153\udc0B\u9d6c\u3174\uF646\uAc89\u14E1"
 			+ "\u163A\u6909\u70B6\ud0Ed\ucc42\u98A4\u285c\uF886";
 
-	private static long[][] C = new long[8][256];
-	private static long[] rc = new long[R + 1];
+	/**
+	 * The circulant tables, where C<i>t</i>[x] = C0[x] rotr 8<i>t</i>.
+	 */
+	private static final long[] C0 = new long[256], C1 = new long[256], C2 = new long[256], C3 = new long[256],
+			C4 = new long[256], C5 = new long[256], C6 = new long[256], C7 = new long[256];
+
+	/**
+	 * The round constants.
+	 */
+	private static final long[] RC = new long[R];
 
 	static {
 		for (int x = 0; x < 256; x++) {
@@ -111,79 +126,83 @@ public class Whirlpool {
 			}
 			long v9 = v8 ^ v1;
 			/*
-			 * build the circulant table C[0][x] = S[x].[1, 1, 4, 1, 8, 5, 2,
-			 * 9]:
+			 * build the circulant table C0[x] = S[x].[1, 1, 4, 1, 8, 5, 2, 9]:
 			 */
-			C[0][x] = (v1 << 56) | (v1 << 48) | (v4 << 40) | (v1 << 32) | (v8 << 24) | (v5 << 16) | (v2 << 8) | (v9);
+			C0[x] = (v1 << 56) | (v1 << 48) | (v4 << 40) | (v1 << 32) | (v8 << 24) | (v5 << 16) | (v2 << 8) | (v9);
 			/*
-			 * build the remaining circulant tables C[t][x] = C[0][x] rotr t
+			 * build the remaining circulant tables by rotation:
 			 */
-			for (int t = 1; t < 8; t++) {
-				C[t][x] = (C[t - 1][x] >>> 8) | ((C[t - 1][x] << 56));
-			}
+			C1[x] = Long.rotateRight(C0[x], 8);
+			C2[x] = Long.rotateRight(C0[x], 16);
+			C3[x] = Long.rotateRight(C0[x], 24);
+			C4[x] = Long.rotateRight(C0[x], 32);
+			C5[x] = Long.rotateRight(C0[x], 40);
+			C6[x] = Long.rotateRight(C0[x], 48);
+			C7[x] = Long.rotateRight(C0[x], 56);
 		}
 
 		/*
 		 * build the round constants:
 		 */
-		rc[0] = 0L; /*
-					 * not used (assigment kept only to properly initialize all
-					 * variables)
-					 */
-		for (int r = 1; r <= R; r++) {
-			int i = 8 * (r - 1);
-			rc[r] = (C[0][i] & 0xff00000000000000L) ^ (C[1][i + 1] & 0x00ff000000000000L)
-					^ (C[2][i + 2] & 0x0000ff0000000000L) ^ (C[3][i + 3] & 0x000000ff00000000L)
-					^ (C[4][i + 4] & 0x00000000ff000000L) ^ (C[5][i + 5] & 0x0000000000ff0000L)
-					^ (C[6][i + 6] & 0x000000000000ff00L) ^ (C[7][i + 7] & 0x00000000000000ffL);
+		for (int r = 0; r < R; r++) {
+			int i = 8 * r;
+			RC[r] = (C0[i] & 0xff00000000000000L) ^ (C1[i + 1] & 0x00ff000000000000L)
+					^ (C2[i + 2] & 0x0000ff0000000000L) ^ (C3[i + 3] & 0x000000ff00000000L)
+					^ (C4[i + 4] & 0x00000000ff000000L) ^ (C5[i + 5] & 0x0000000000ff0000L)
+					^ (C6[i + 6] & 0x000000000000ff00L) ^ (C7[i + 7] & 0x00000000000000ffL);
 		}
 	}
 
+	/**
+	 * The instance each thread hashes with in the static helpers.
+	 */
+	private static final ThreadLocal<Whirlpool> instances = ThreadLocal.withInitial(Whirlpool::new);
+
 	public static byte[] whirlpool(byte[] data, int off, int len) {
-		byte source[];
-		if (off <= 0) {
-			source = data;
-		} else {
-			source = new byte[len];
-			for (int i = 0; i < len; i++)
-				source[i] = data[off + i];
-		}
-		Whirlpool whirlpool = new Whirlpool();
+		Whirlpool whirlpool = instances.get();
 		whirlpool.NESSIEinit();
-		whirlpool.NESSIEadd(source, len * 8);
-		byte digest[] = new byte[64];
+		whirlpool.update(data, off, len);
+		byte digest[] = new byte[DIGESTBYTES];
 		whirlpool.NESSIEfinalize(digest);
 		return digest;
 	}
 
 	/**
-	 * Global number of hashed bits (256-bit counter).
+	 * Computes the digest of the remaining bytes of a buffer without copying
+	 * them. The position of the buffer is advanced to its limit.
+	 *
+	 * @param buf
+	 *            the buffer.
+	 * @return the 64-byte digest.
 	 */
-	protected byte[] bitLength = new byte[32];
+	public static byte[] whirlpool(ByteBuffer buf) {
+		Whirlpool whirlpool = instances.get();
+		whirlpool.NESSIEinit();
+		whirlpool.update(buf);
+		byte digest[] = new byte[DIGESTBYTES];
+		whirlpool.NESSIEfinalize(digest);
+		return digest;
+	}
 
 	/**
-	 * Buffer of data to hash.
+	 * Number of hashed bytes.
 	 */
-	protected byte[] buffer = new byte[64];
+	private long byteCount;
 
 	/**
-	 * Current number of bits on the buffer.
+	 * Buffer of data to hash.
 	 */
-	protected int bufferBits = 0;
+	private final byte[] buffer = new byte[64];
 
 	/**
-	 * Current (possibly incomplete) byte slot on the buffer.
+	 * Current number of bytes on the buffer.
 	 */
-	protected int bufferPos = 0;
+	private int bufferPos;
 
 	/**
 	 * The hashing state.
 	 */
-	protected long[] hash = new long[8];
-	protected long[] K = new long[8]; // the round key
-	protected long[] L = new long[8];
-	protected long[] block = new long[8]; // mu(buffer)
-	protected long[] state = new long[8]; // the cipher state
+	private long h0, h1, h2, h3, h4, h5, h6, h7;
 
 	public Whirlpool() {
 	}
@@ -194,86 +213,100 @@ public class Whirlpool {
 	 * @param source
 	 *            plaintext data to hash.
 	 * @param sourceBits
-	 *            how many bits of plaintext to process.
-	 *
-	 *            This method maintains the invariant: bufferBits < 512
+	 *            how many bits of plaintext to process, which must be a whole
+	 *            number of bytes.
+	 * @throws IllegalArgumentException
+	 *             if the number of bits is not a multiple of 8.
 	 */
 	public void NESSIEadd(byte[] source, long sourceBits) {
-		/*
-		 * sourcePos | +-------+-------+------- ||||||||||||||||||||| source
-		 * +-------+-------+-------
-		 * +-------+-------+-------+-------+-------+-------
-		 * |||||||||||||||||||||| buffer
-		 * +-------+-------+-------+-------+-------+------- | bufferPos
-		 */
-		int sourcePos = 0; // index of leftmost source byte containing data (1
-							// to 8 bits).
-		int sourceGap = (8 - ((int) sourceBits & 7)) & 7; // space on
-															// source[sourcePos].
-		int bufferRem = bufferBits & 7; // occupied bits on buffer[bufferPos].
-		int b;
-		// tally the length of the added data:
-		long value = sourceBits;
-		for (int i = 31, carry = 0; i >= 0; i--) {
-			carry += (bitLength[i] & 0xff) + ((int) value & 0xff);
-			bitLength[i] = (byte) carry;
-			carry >>>= 8;
-			value >>>= 8;
+		if ((sourceBits & 7) != 0) {
+			throw new IllegalArgumentException("Only whole bytes can be hashed.");
 		}
-		// process data in chunks of 8 bits:
-		while (sourceBits > 8) { // at least source[sourcePos] and
-									// source[sourcePos+1] contain data.
-			// take a byte from the source:
-			b = ((source[sourcePos] << sourceGap) & 0xff) | ((source[sourcePos + 1] & 0xff) >>> (8 - sourceGap));
-			if (b < 0 || b >= 256) {
-				throw new RuntimeException("LOGIC ERROR");
-			}
-			// process this byte:
-			buffer[bufferPos++] |= b >>> bufferRem;
-			bufferBits += 8 - bufferRem; // bufferBits = 8*bufferPos;
-			if (bufferBits == 512) {
-				// process data block:
-				processBuffer();
-				// reset buffer:
-				bufferBits = bufferPos = 0;
+		update(source, 0, (int) (sourceBits >>> 3));
+	}
+
+	/**
+	 * Delivers input data to the hashing algorithm, hashing whole blocks
+	 * straight out of the array.
+	 *
+	 * @param source
+	 *            plaintext data to hash.
+	 * @param off
+	 *            the offset of the data.
+	 * @param len
+	 *            the length of the data.
+	 */
+	public void update(byte[] source, int off, int len) {
+		if (off < 0 || len < 0 || len > source.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		byteCount += len;
+		// top up a partially filled buffer first:
+		if (bufferPos != 0) {
+			int n = Math.min(64 - bufferPos, len);
+			System.arraycopy(source, off, buffer, bufferPos, n);
+			bufferPos += n;
+			off += n;
+			len -= n;
+			if (bufferPos < 64) {
+				return;
 			}
-			buffer[bufferPos] = (byte) ((b << (8 - bufferRem)) & 0xff);
-			bufferBits += bufferRem;
-			// proceed to remaining data:
-			sourceBits -= 8;
-			sourcePos++;
+			processBlock(buffer, 0);
+			bufferPos = 0;
 		}
-		// now 0 <= sourceBits <= 8;
-		// furthermore, all data (if any is left) is in source[sourcePos].
-		if (sourceBits > 0) {
-			b = (source[sourcePos] << sourceGap) & 0xff; // bits are
-															// left-justified on
-															// b.
-			// process the remaining bits:
-			buffer[bufferPos] |= b >>> bufferRem;
-		} else {
-			b = 0;
+		// then hash whole blocks without copying them:
+		for (; len >= 64; off += 64, len -= 64) {
+			processBlock(source, off);
 		}
-		if (bufferRem + sourceBits < 8) {
-			// all remaining data fits on buffer[bufferPos], and there still
-			// remains some space.
-			bufferBits += sourceBits;
-		} else {
-			// buffer[bufferPos] is full:
-			bufferPos++;
-			bufferBits += 8 - bufferRem; // bufferBits = 8*bufferPos;
-			sourceBits -= 8 - bufferRem;
-			// now 0 <= sourceBits < 8; furthermore, all data is in
-			// source[sourcePos].
-			if (bufferBits == 512) {
-				// process data block:
-				processBuffer();
-				// reset buffer:
-				bufferBits = bufferPos = 0;
+		// and keep the rest for later:
+		System.arraycopy(source, off, buffer, 0, len);
+		bufferPos = len;
+	}
+
+	/**
+	 * Delivers the remaining bytes of a buffer to the hashing algorithm,
+	 * hashing whole blocks straight out of the buffer. The position of the
+	 * buffer is advanced to its limit.
+	 *
+	 * @param source
+	 *            plaintext data to hash.
+	 */
+	public void update(ByteBuffer source) {
+		int pos = source.position();
+		int end = source.limit();
+		if (source.hasArray()) {
+			update(source.array(), source.arrayOffset() + pos, end - pos);
+			source.position(end);
+			return;
+		}
+		byteCount += end - pos;
+		// top up a partially filled buffer first:
+		while (bufferPos != 0 && pos < end) {
+			buffer[bufferPos++] = source.get(pos++);
+			if (bufferPos == 64) {
+				processBlock(buffer, 0);
+				bufferPos = 0;
 			}
-			buffer[bufferPos] = (byte) ((b << (8 - bufferRem)) & 0xff);
-			bufferBits += (int) sourceBits;
 		}
+		// then hash whole blocks without copying them:
+		boolean swap = source.order() != ByteOrder.BIG_ENDIAN;
+		for (; end - pos >= 64; pos += 64) {
+			if (swap) {
+				processBlock(Long.reverseBytes(source.getLong(pos)), Long.reverseBytes(source.getLong(pos + 8)),
+						Long.reverseBytes(source.getLong(pos + 16)), Long.reverseBytes(source.getLong(pos + 24)),
+						Long.reverseBytes(source.getLong(pos + 32)), Long.reverseBytes(source.getLong(pos + 40)),
+						Long.reverseBytes(source.getLong(pos + 48)), Long.reverseBytes(source.getLong(pos + 56)));
+			} else {
+				processBlock(source.getLong(pos), source.getLong(pos + 8), source.getLong(pos + 16),
+						source.getLong(pos + 24), source.getLong(pos + 32), source.getLong(pos + 40),
+						source.getLong(pos + 48), source.getLong(pos + 56));
+			}
+		}
+		// and keep the rest for later:
+		while (pos < end) {
+			buffer[bufferPos++] = source.get(pos++);
+		}
+		source.position(end);
 	}
 
 	/**
@@ -281,8 +314,6 @@ public class Whirlpool {
 	 *
 	 * @param source
 	 *            plaintext data to hash (ASCII text string).
-	 *
-	 *            This method maintains the invariant: bufferBits < 512
 	 */
 	public void NESSIEadd(String source) {
 		if (source.length() > 0) {
@@ -290,115 +321,178 @@ public class Whirlpool {
 			for (int i = 0; i < source.length(); i++) {
 				data[i] = (byte) source.charAt(i);
 			}
-			NESSIEadd(data, 8 * data.length);
+			update(data, 0, data.length);
 		}
 	}
 
 	/**
-	 * Get the hash value from the hashing state.
+	 * Get the hash value from the hashing state. The state is reset
+	 * afterwards, so the instance can be reused.
 	 *
-	 * This method uses the invariant: bufferBits < 512
+	 * @param digest
+	 *            the array to write the 64-byte digest to.
 	 */
 	public void NESSIEfinalize(byte[] digest) {
-		// append a '1'-bit:
-		buffer[bufferPos] |= 0x80 >>> (bufferBits & 7);
-		bufferPos++; // all remaining bits on the current byte are set to zero.
+		// append a '1'-bit, padding the rest of the byte with zero bits:
+		buffer[bufferPos++] = (byte) 0x80;
 		// pad with zero bits to complete 512N + 256 bits:
 		if (bufferPos > 32) {
 			while (bufferPos < 64) {
 				buffer[bufferPos++] = 0;
 			}
-			// process data block:
-			processBuffer();
-			// reset buffer:
+			processBlock(buffer, 0);
 			bufferPos = 0;
 		}
 		while (bufferPos < 32) {
 			buffer[bufferPos++] = 0;
 		}
-		// append bit length of hashed data:
-		System.arraycopy(bitLength, 0, buffer, 32, 32);
-		// process data block:
-		processBuffer();
+		// append the 256-bit length of the hashed data:
+		processBlock(getLong(buffer, 0), getLong(buffer, 8), getLong(buffer, 16), getLong(buffer, 24), 0L, 0L,
+				byteCount >>> 61, byteCount << 3);
 		// return the completed message digest:
-		for (int i = 0, j = 0; i < 8; i++, j += 8) {
-			long h = hash[i];
-			digest[j] = (byte) (h >>> 56);
-			digest[j + 1] = (byte) (h >>> 48);
-			digest[j + 2] = (byte) (h >>> 40);
-			digest[j + 3] = (byte) (h >>> 32);
-			digest[j + 4] = (byte) (h >>> 24);
-			digest[j + 5] = (byte) (h >>> 16);
-			digest[j + 6] = (byte) (h >>> 8);
-			digest[j + 7] = (byte) (h);
-		}
+		putLong(digest, 0, h0);
+		putLong(digest, 8, h1);
+		putLong(digest, 16, h2);
+		putLong(digest, 24, h3);
+		putLong(digest, 32, h4);
+		putLong(digest, 40, h5);
+		putLong(digest, 48, h6);
+		putLong(digest, 56, h7);
+		NESSIEinit();
 	}
 
 	/**
 	 * Initialize the hashing state.
 	 */
 	public void NESSIEinit() {
-		Arrays.fill(bitLength, (byte) 0);
-		bufferBits = bufferPos = 0;
-		buffer[0] = 0; // it's only necessary to cleanup buffer[bufferPos].
-		Arrays.fill(hash, 0L); // initial value
+		byteCount = 0;
+		bufferPos = 0;
+		h0 = h1 = h2 = h3 = h4 = h5 = h6 = h7 = 0L; // initial value
 	}
 
 	/**
-	 * The core Whirlpool transform.
+	 * Reads a big endian long.
 	 */
-	protected void processBuffer() {
-		/*
-		 * map the buffer to a block:
-		 */
-		for (int i = 0, j = 0; i < 8; i++, j += 8) {
-			block[i] = (((long) buffer[j]) << 56) ^ (((long) buffer[j + 1] & 0xffL) << 48)
-					^ (((long) buffer[j + 2] & 0xffL) << 40) ^ (((long) buffer[j + 3] & 0xffL) << 32)
-					^ (((long) buffer[j + 4] & 0xffL) << 24) ^ (((long) buffer[j + 5] & 0xffL) << 16)
-					^ (((long) buffer[j + 6] & 0xffL) << 8) ^ (((long) buffer[j + 7] & 0xffL));
+	private static long getLong(byte[] b, int off) {
+		return ((long) b[off] << 56) | ((b[off + 1] & 0xffL) << 48) | ((b[off + 2] & 0xffL) << 40)
+				| ((b[off + 3] & 0xffL) << 32) | ((b[off + 4] & 0xffL) << 24) | ((b[off + 5] & 0xffL) << 16)
+				| ((b[off + 6] & 0xffL) << 8) | (b[off + 7] & 0xffL);
+	}
+
+	/**
+	 * Writes a big endian long.
+	 */
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; i--, v >>>= 8) {
+			b[off + i] = (byte) v;
 		}
+	}
+
+	/**
+	 * The core Whirlpool transform, applied to the 64 bytes at an offset.
+	 */
+	private void processBlock(byte[] b, int off) {
+		processBlock(getLong(b, off), getLong(b, off + 8), getLong(b, off + 16), getLong(b, off + 24),
+				getLong(b, off + 32), getLong(b, off + 40), getLong(b, off + 48), getLong(b, off + 56));
+	}
+
+	/**
+	 * The core Whirlpool transform, applied to a block of eight big endian
+	 * words.
+	 */
+	private void processBlock(long b0, long b1, long b2, long b3, long b4, long b5, long b6, long b7) {
 		/*
 		 * compute and apply K^0 to the cipher state:
 		 */
-		for (int i = 0; i < 8; i++) {
-			state[i] = block[i] ^ (K[i] = hash[i]);
-		}
+		long k0 = h0, k1 = h1, k2 = h2, k3 = h3, k4 = h4, k5 = h5, k6 = h6, k7 = h7;
+		long s0 = b0 ^ k0, s1 = b1 ^ k1, s2 = b2 ^ k2, s3 = b3 ^ k3;
+		long s4 = b4 ^ k4, s5 = b5 ^ k5, s6 = b6 ^ k6, s7 = b7 ^ k7;
 		/*
 		 * iterate over all rounds:
 		 */
-		for (int r = 1; r <= R; r++) {
+		for (int r = 0; r < R; r++) {
 			/*
 			 * compute K^r from K^{r-1}:
 			 */
-			for (int i = 0; i < 8; i++) {
-				L[i] = 0L;
-				for (int t = 0, s = 56; t < 8; t++, s -= 8) {
-					L[i] ^= C[t][(int) (K[(i - t) & 7] >>> s) & 0xff];
-				}
-			}
-			for (int i = 0; i < 8; i++) {
-				K[i] = L[i];
-			}
-			K[0] ^= rc[r];
+			long l0 = C0[(int) (k0 >>> 56)] ^ C1[(int) (k7 >>> 48) & 0xff] ^ C2[(int) (k6 >>> 40) & 0xff]
+					^ C3[(int) (k5 >>> 32) & 0xff] ^ C4[(int) (k4 >>> 24) & 0xff] ^ C5[(int) (k3 >>> 16) & 0xff]
+					^ C6[(int) (k2 >>> 8) & 0xff] ^ C7[(int) k1 & 0xff] ^ RC[r];
+			long l1 = C0[(int) (k1 >>> 56)] ^ C1[(int) (k0 >>> 48) & 0xff] ^ C2[(int) (k7 >>> 40) & 0xff]
+					^ C3[(int) (k6 >>> 32) & 0xff] ^ C4[(int) (k5 >>> 24) & 0xff] ^ C5[(int) (k4 >>> 16) & 0xff]
+					^ C6[(int) (k3 >>> 8) & 0xff] ^ C7[(int) k2 & 0xff];
+			long l2 = C0[(int) (k2 >>> 56)] ^ C1[(int) (k1 >>> 48) & 0xff] ^ C2[(int) (k0 >>> 40) & 0xff]
+					^ C3[(int) (k7 >>> 32) & 0xff] ^ C4[(int) (k6 >>> 24) & 0xff] ^ C5[(int) (k5 >>> 16) & 0xff]
+					^ C6[(int) (k4 >>> 8) & 0xff] ^ C7[(int) k3 & 0xff];
+			long l3 = C0[(int) (k3 >>> 56)] ^ C1[(int) (k2 >>> 48) & 0xff] ^ C2[(int) (k1 >>> 40) & 0xff]
+					^ C3[(int) (k0 >>> 32) & 0xff] ^ C4[(int) (k7 >>> 24) & 0xff] ^ C5[(int) (k6 >>> 16) & 0xff]
+					^ C6[(int) (k5 >>> 8) & 0xff] ^ C7[(int) k4 & 0xff];
+			long l4 = C0[(int) (k4 >>> 56)] ^ C1[(int) (k3 >>> 48) & 0xff] ^ C2[(int) (k2 >>> 40) & 0xff]
+					^ C3[(int) (k1 >>> 32) & 0xff] ^ C4[(int) (k0 >>> 24) & 0xff] ^ C5[(int) (k7 >>> 16) & 0xff]
+					^ C6[(int) (k6 >>> 8) & 0xff] ^ C7[(int) k5 & 0xff];
+			long l5 = C0[(int) (k5 >>> 56)] ^ C1[(int) (k4 >>> 48) & 0xff] ^ C2[(int) (k3 >>> 40) & 0xff]
+					^ C3[(int) (k2 >>> 32) & 0xff] ^ C4[(int) (k1 >>> 24) & 0xff] ^ C5[(int) (k0 >>> 16) & 0xff]
+					^ C6[(int) (k7 >>> 8) & 0xff] ^ C7[(int) k6 & 0xff];
+			long l6 = C0[(int) (k6 >>> 56)] ^ C1[(int) (k5 >>> 48) & 0xff] ^ C2[(int) (k4 >>> 40) & 0xff]
+					^ C3[(int) (k3 >>> 32) & 0xff] ^ C4[(int) (k2 >>> 24) & 0xff] ^ C5[(int) (k1 >>> 16) & 0xff]
+					^ C6[(int) (k0 >>> 8) & 0xff] ^ C7[(int) k7 & 0xff];
+			long l7 = C0[(int) (k7 >>> 56)] ^ C1[(int) (k6 >>> 48) & 0xff] ^ C2[(int) (k5 >>> 40) & 0xff]
+					^ C3[(int) (k4 >>> 32) & 0xff] ^ C4[(int) (k3 >>> 24) & 0xff] ^ C5[(int) (k2 >>> 16) & 0xff]
+					^ C6[(int) (k1 >>> 8) & 0xff] ^ C7[(int) k0 & 0xff];
 			/*
 			 * apply the r-th round transformation:
 			 */
-			for (int i = 0; i < 8; i++) {
-				L[i] = K[i];
-				for (int t = 0, s = 56; t < 8; t++, s -= 8) {
-					L[i] ^= C[t][(int) (state[(i - t) & 7] >>> s) & 0xff];
-				}
-			}
-			for (int i = 0; i < 8; i++) {
-				state[i] = L[i];
-			}
+			long t0 = l0 ^ C0[(int) (s0 >>> 56)] ^ C1[(int) (s7 >>> 48) & 0xff]
+					^ C2[(int) (s6 >>> 40) & 0xff] ^ C3[(int) (s5 >>> 32) & 0xff] ^ C4[(int) (s4 >>> 24) & 0xff]
+					^ C5[(int) (s3 >>> 16) & 0xff] ^ C6[(int) (s2 >>> 8) & 0xff] ^ C7[(int) s1 & 0xff];
+			long t1 = l1 ^ C0[(int) (s1 >>> 56)] ^ C1[(int) (s0 >>> 48) & 0xff]
+					^ C2[(int) (s7 >>> 40) & 0xff] ^ C3[(int) (s6 >>> 32) & 0xff] ^ C4[(int) (s5 >>> 24) & 0xff]
+					^ C5[(int) (s4 >>> 16) & 0xff] ^ C6[(int) (s3 >>> 8) & 0xff] ^ C7[(int) s2 & 0xff];
+			long t2 = l2 ^ C0[(int) (s2 >>> 56)] ^ C1[(int) (s1 >>> 48) & 0xff]
+					^ C2[(int) (s0 >>> 40) & 0xff] ^ C3[(int) (s7 >>> 32) & 0xff] ^ C4[(int) (s6 >>> 24) & 0xff]
+					^ C5[(int) (s5 >>> 16) & 0xff] ^ C6[(int) (s4 >>> 8) & 0xff] ^ C7[(int) s3 & 0xff];
+			long t3 = l3 ^ C0[(int) (s3 >>> 56)] ^ C1[(int) (s2 >>> 48) & 0xff]
+					^ C2[(int) (s1 >>> 40) & 0xff] ^ C3[(int) (s0 >>> 32) & 0xff] ^ C4[(int) (s7 >>> 24) & 0xff]
+					^ C5[(int) (s6 >>> 16) & 0xff] ^ C6[(int) (s5 >>> 8) & 0xff] ^ C7[(int) s4 & 0xff];
+			long t4 = l4 ^ C0[(int) (s4 >>> 56)] ^ C1[(int) (s3 >>> 48) & 0xff]
+					^ C2[(int) (s2 >>> 40) & 0xff] ^ C3[(int) (s1 >>> 32) & 0xff] ^ C4[(int) (s0 >>> 24) & 0xff]
+					^ C5[(int) (s7 >>> 16) & 0xff] ^ C6[(int) (s6 >>> 8) & 0xff] ^ C7[(int) s5 & 0xff];
+			long t5 = l5 ^ C0[(int) (s5 >>> 56)] ^ C1[(int) (s4 >>> 48) & 0xff]
+					^ C2[(int) (s3 >>> 40) & 0xff] ^ C3[(int) (s2 >>> 32) & 0xff] ^ C4[(int) (s1 >>> 24) & 0xff]
+					^ C5[(int) (s0 >>> 16) & 0xff] ^ C6[(int) (s7 >>> 8) & 0xff] ^ C7[(int) s6 & 0xff];
+			long t6 = l6 ^ C0[(int) (s6 >>> 56)] ^ C1[(int) (s5 >>> 48) & 0xff]
+					^ C2[(int) (s4 >>> 40) & 0xff] ^ C3[(int) (s3 >>> 32) & 0xff] ^ C4[(int) (s2 >>> 24) & 0xff]
+					^ C5[(int) (s1 >>> 16) & 0xff] ^ C6[(int) (s0 >>> 8) & 0xff] ^ C7[(int) s7 & 0xff];
+			long t7 = l7 ^ C0[(int) (s7 >>> 56)] ^ C1[(int) (s6 >>> 48) & 0xff]
+					^ C2[(int) (s5 >>> 40) & 0xff] ^ C3[(int) (s4 >>> 32) & 0xff] ^ C4[(int) (s3 >>> 24) & 0xff]
+					^ C5[(int) (s2 >>> 16) & 0xff] ^ C6[(int) (s1 >>> 8) & 0xff] ^ C7[(int) s0 & 0xff];
+			k0 = l0;
+			k1 = l1;
+			k2 = l2;
+			k3 = l3;
+			k4 = l4;
+			k5 = l5;
+			k6 = l6;
+			k7 = l7;
+			s0 = t0;
+			s1 = t1;
+			s2 = t2;
+			s3 = t3;
+			s4 = t4;
+			s5 = t5;
+			s6 = t6;
+			s7 = t7;
 		}
 		/*
 		 * apply the Miyaguchi-Preneel compression function:
 		 */
-		for (int i = 0; i < 8; i++) {
-			hash[i] ^= state[i] ^ block[i];
-		}
+		h0 ^= s0 ^ b0;
+		h1 ^= s1 ^ b1;
+		h2 ^= s2 ^ b2;
+		h3 ^= s3 ^ b3;
+		h4 ^= s4 ^ b4;
+		h5 ^= s5 ^ b5;
+		h6 ^= s6 ^ b6;
+		h7 ^= s7 ^ b7;
 	}
 
 }
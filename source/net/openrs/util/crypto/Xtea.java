@@ -70,6 +70,27 @@ public final class Xtea {
 		}
 	}
 
+	/**
+	 * Deciphers a single block with the given key.
+	 * 
+	 * @param v0
+	 *            The first half of the block.
+	 * @param v1
+	 *            The second half of the block.
+	 * @param key
+	 *            The key.
+	 * @return The deciphered block, with the first half in the high 32 bits.
+	 */
+	public static long decipherBlock(int v0, int v1, int[] key) {
+		int sum = GOLDEN_RATIO * ROUNDS;
+		for (int j = 0; j < ROUNDS; j++) {
+			v1 -= (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + key[(sum >>> 11) & 3]);
+			sum -= GOLDEN_RATIO;
+			v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + key[sum & 3]);
+		}
+		return ((long) v0 << 32) | (v1 & 0xFFFFFFFFL);
+	}
+
 	/**
 	 * Enciphers the specified {@link ByteBuffer} with the given key.
 	 * 